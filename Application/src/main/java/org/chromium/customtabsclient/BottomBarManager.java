@@ -21,6 +21,7 @@ import android.content.Intent;
 import android.media.MediaPlayer;
 import android.support.customtabs.CustomTabsIntent;
 import android.support.customtabs.CustomTabsSession;
+import android.support.customtabs.CustomTabsVisualsUpdater;
 import android.widget.RemoteViews;
 import android.widget.Toast;
 
@@ -31,6 +32,7 @@ import java.lang.ref.WeakReference;
  */
 public class BottomBarManager extends BroadcastReceiver {
     private static WeakReference<MediaPlayer> sMediaPlayerWeakRef;
+    private static WeakReference<CustomTabsVisualsUpdater> sVisualsUpdaterWeakRef;
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -40,6 +42,7 @@ public class BottomBarManager extends BroadcastReceiver {
 
         CustomTabsSession session = SessionHelper.getCurrentSession();
         if (session == null) return;
+        CustomTabsVisualsUpdater visualsUpdater = getVisualsUpdater(session);
 
         if (clickedId == R.id.play_pause) {
             MediaPlayer player = sMediaPlayerWeakRef.get();
@@ -47,16 +50,41 @@ public class BottomBarManager extends BroadcastReceiver {
                 boolean isPlaying = player.isPlaying();
                 if (isPlaying) player.pause();
                 else player.start();
-                // Update the play/stop icon to respect the current state.
-                session.setSecondaryToolbarViews(createRemoteViews(context, isPlaying), getClickableIDs(),
-                        getOnClickPendingIntent(context));
+                // Update the play/stop icon to respect the current state. The bottom bar is
+                // replaced as a whole, so each toggle sends the full RemoteViews, only repeated
+                // states and clicks within the same frame are merged by the updater.
+                visualsUpdater.setSecondaryToolbarViews(createRemoteViews(context, isPlaying),
+                        getClickableIDs(), getOnClickPendingIntent(context));
             }
         } else if (clickedId == R.id.cover) {
             // Clicking on the cover image will dismiss the bottom bar.
-            session.setSecondaryToolbarViews(null, null, null);
+            visualsUpdater.setSecondaryToolbarViews(null, null, null);
         }
     }
 
+    /**
+     * Called when a Custom Tab is launched, as it then shows the bottom bar of its intent rather
+     * than the one last sent by the {@link CustomTabsVisualsUpdater}.
+     */
+    public static void onCustomTabLaunched() {
+        CustomTabsVisualsUpdater visualsUpdater =
+                sVisualsUpdaterWeakRef == null ? null : sVisualsUpdaterWeakRef.get();
+        if (visualsUpdater != null) visualsUpdater.invalidate();
+    }
+
+    /**
+     * @return The {@link CustomTabsVisualsUpdater} batching the updates sent to the given session.
+     */
+    private static CustomTabsVisualsUpdater getVisualsUpdater(CustomTabsSession session) {
+        CustomTabsVisualsUpdater visualsUpdater =
+                sVisualsUpdaterWeakRef == null ? null : sVisualsUpdaterWeakRef.get();
+        if (visualsUpdater == null || visualsUpdater.getSession() != session) {
+            visualsUpdater = new CustomTabsVisualsUpdater(session);
+            sVisualsUpdaterWeakRef = new WeakReference<>(visualsUpdater);
+        }
+        return visualsUpdater;
+    }
+
     /**
      * Creates a RemoteViews that will be shown as the bottom bar of the custom tab.
      * @param showPlayIcon If true, a play icon will be shown, otherwise show a pause icon.
@@ -262,6 +262,7 @@ public class MainActivity
                     customTabsIntent.intent.setPackage(mPackageNameToBind);
                 }
             }
+            BottomBarManager.onCustomTabLaunched();
             customTabsIntent.launchUrl(this, Uri.parse(url));
         } else if (viewId == R.id.launch_browser_actions_button) {
             Intent openLinkIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
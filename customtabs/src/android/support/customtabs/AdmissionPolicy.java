@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Decides whether a {@link CustomTabsService} passes a client request on to the provider, so that
+ * a client sending requests in a tight loop cannot use up the capacity of the provider. Set with
+ * {@link CustomTabsService#setAdmissionPolicy(AdmissionPolicy)}.
+ *
+ * @see TokenBucketAdmissionPolicy
+ */
+public interface AdmissionPolicy {
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({REQUEST_MAY_LAUNCH_URL, REQUEST_POST_MESSAGE})
+    @interface Request {
+    }
+
+    /**
+     * A {@link CustomTabsService#mayLaunchUrl} request. Rejected requests return false.
+     */
+    int REQUEST_MAY_LAUNCH_URL = 0;
+
+    /**
+     * A {@link CustomTabsService#postMessage} request, for each message of a batch or of a
+     * {@link PostMessageRing}. Rejected requests return
+     * {@link CustomTabsService#RESULT_FAILURE_DISALLOWED}.
+     */
+    int REQUEST_POST_MESSAGE = 1;
+
+    /**
+     * Called on the binder thread of each request, before it is passed to the provider.
+     *
+     * @param sessionToken The session making the request.
+     * @param uid          The UID of the calling application.
+     * @param request      The type of the request.
+     * @return Whether the request should be passed to the provider.
+     */
+    boolean admit(@NonNull CustomTabsSessionToken sessionToken, int uid, @Request int request);
+}
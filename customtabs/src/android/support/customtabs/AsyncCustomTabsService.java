@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CustomTabsService} whose potentially slow requests are handled on an executor, so that
+ * they do not hold binder threads while the provider does network or disk work.
+ * <p>
+ * {@link #mayLaunchUrl}, {@link #updateVisuals}, {@link #postMessage} and
+ * {@link #validateRelationship} return as soon as the request is queued, and the request is then
+ * handled by the matching {@code on*} method. The result of a relationship validation is sent to
+ * the client through {@link CustomTabsCallback#onRelationshipValidationResult}. Requests are
+ * rejected, as if the provider had refused them, when the executor is saturated. The
+ * postMessage requests of a session are handled one at a time, in order.
+ */
+public abstract class AsyncCustomTabsService extends CustomTabsService {
+    private static final String TAG = "AsyncCustomTabsService";
+
+    /** Default maximum number of requests handled at the same time. */
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    /** Default maximum number of requests waiting to be handled. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final Executor mExecutor;
+    private final ThreadPoolExecutor mOwnedExecutor;
+    private final int mQueueCapacity;
+    private final ConcurrentHashMap<CustomTabsSessionToken, SessionMessages> mSessionMessages =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The postMessage requests of a session waiting to be handled. It is removed from
+     * mSessionMessages, and retired, once all of them have been handled.
+     */
+    private class SessionMessages implements Runnable {
+        private final CustomTabsSessionToken mSessionToken;
+        // Pairs of a message and its extras, which may be null.
+        private final ArrayDeque<Object[]> mMessages = new ArrayDeque<>();
+        private boolean mScheduled;
+        /** Whether this has been removed from mSessionMessages, and must not be offered more. */
+        private boolean mRetired;
+
+        SessionMessages(CustomTabsSessionToken sessionToken) {
+            mSessionToken = sessionToken;
+        }
+
+        /**
+         * Queues a message, and schedules the handling of the queue if needed. Must be called
+         * while holding the lock of this, which must not be retired.
+         */
+        @Result int offerLocked(String message, Bundle extras) {
+            if (mMessages.size() >= mQueueCapacity) return RESULT_FAILURE_MESSAGING_ERROR;
+            mMessages.addLast(new Object[] {message, extras});
+            if (mScheduled) return RESULT_SUCCESS;
+            // Scheduled while holding the lock, so that a rejection only concerns this message.
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                mMessages.pollLast();
+                retireLocked();
+                return RESULT_FAILURE_MESSAGING_ERROR;
+            }
+            mScheduled = true;
+            return RESULT_SUCCESS;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Object[] entry;
+                synchronized (this) {
+                    entry = mMessages.pollFirst();
+                    if (entry == null) {
+                        mScheduled = false;
+                        retireLocked();
+                        return;
+                    }
+                }
+                onPostMessage(mSessionToken, (String) entry[0], (Bundle) entry[1]);
+            }
+        }
+
+        private void retireLocked() {
+            mRetired = true;
+            mSessionMessages.remove(mSessionToken, this);
+        }
+    }
+
+    /**
+     * Handles the requests on a pool of {@link #DEFAULT_MAX_CONCURRENCY} threads, with at most
+     * {@link #DEFAULT_QUEUE_CAPACITY} waiting requests.
+     */
+    public AsyncCustomTabsService() {
+        this(DEFAULT_MAX_CONCURRENCY, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Handles the requests on a pool of threads owned by the service.
+     *
+     * @param maxConcurrency The maximum number of requests handled at the same time.
+     * @param queueCapacity  The maximum number of requests waiting for a thread, and of
+     *                       postMessage requests waiting in each session.
+     */
+    public AsyncCustomTabsService(int maxConcurrency, int queueCapacity) {
+        mOwnedExecutor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity));
+        mOwnedExecutor.allowCoreThreadTimeOut(true);
+        mExecutor = mOwnedExecutor;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Handles the requests on the given executor. It should be bounded, and reject requests with
+     * a {@link RejectedExecutionException} when saturated.
+     *
+     * @param executor      The executor.
+     * @param queueCapacity The maximum number of postMessage requests waiting in each session.
+     */
+    public AsyncCustomTabsService(@NonNull Executor executor, int queueCapacity) {
+        mOwnedExecutor = null;
+        mExecutor = executor;
+        mQueueCapacity = queueCapacity;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mOwnedExecutor != null) mOwnedExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    protected boolean cleanUpSession(CustomTabsSessionToken sessionToken) {
+        mSessionMessages.remove(sessionToken);
+        return super.cleanUpSession(sessionToken);
+    }
+
+    /**
+     * Queues the request for {@link #onMayLaunchUrl}.
+     *
+     * @return Whether the request was queued.
+     */
+    @Override
+    protected final boolean mayLaunchUrl(final CustomTabsSessionToken sessionToken, final Uri url,
+            final Bundle extras, final List<Bundle> otherLikelyBundles) {
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                onMayLaunchUrl(sessionToken, url, extras, otherLikelyBundles);
+            }
+        });
+    }
+
+    /**
+     * Queues the request for {@link #onUpdateVisuals}.
+     *
+     * @return Whether the request was queued.
+     */
+    @Override
+    protected final boolean updateVisuals(final CustomTabsSessionToken sessionToken,
+            final Bundle bundle) {
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                onUpdateVisuals(sessionToken, bundle);
+            }
+        });
+    }
+
+    /**
+     * Queues the request for {@link #onPostMessage}, behind the previous requests of the session.
+     *
+     * @return {@link #RESULT_SUCCESS} if the request was queued,
+     *         {@link #RESULT_FAILURE_MESSAGING_ERROR} otherwise.
+     */
+    @Override
+    protected final int postMessage(CustomTabsSessionToken sessionToken, String message,
+            Bundle extras) {
+        while (true) {
+            SessionMessages messages = mSessionMessages.get(sessionToken);
+            if (messages == null) {
+                SessionMessages newMessages = new SessionMessages(sessionToken);
+                messages = mSessionMessages.putIfAbsent(sessionToken, newMessages);
+                if (messages == null) messages = newMessages;
+            }
+            synchronized (messages) {
+                // Otherwise, it has just been removed, and a new one is needed.
+                if (!messages.mRetired) return messages.offerLocked(message, extras);
+            }
+        }
+    }
+
+    /**
+     * Queues the request for {@link #onValidateRelationship}, whose result is sent to the client.
+     *
+     * @return Whether the request was queued.
+     */
+    @Override
+    protected final boolean validateRelationship(final CustomTabsSessionToken sessionToken,
+            final @Relation int relation, final Uri origin, final Bundle extras) {
+        return execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean result = onValidateRelationship(sessionToken, relation, origin, extras);
+                CustomTabsCallback callback = sessionToken.getCallback();
+                if (callback != null) {
+                    callback.onRelationshipValidationResult(relation, origin, result, extras);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The number of sessions with postMessage requests waiting or being handled.
+     */
+    @VisibleForTesting
+    /* package */ int getQueuedSessionCount() {
+        return mSessionMessages.size();
+    }
+
+    private boolean execute(Runnable request) {
+        try {
+            mExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many pending requests, rejecting one.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Handles a request queued by {@link #mayLaunchUrl}, on the executor.
+     *
+     * @see CustomTabsService#mayLaunchUrl
+     */
+    protected abstract void onMayLaunchUrl(CustomTabsSessionToken sessionToken, Uri url,
+            Bundle extras, List<Bundle> otherLikelyBundles);
+
+    /**
+     * Handles a request queued by {@link #updateVisuals}, on the executor.
+     *
+     * @see CustomTabsService#updateVisuals
+     */
+    protected abstract void onUpdateVisuals(CustomTabsSessionToken sessionToken, Bundle bundle);
+
+    /**
+     * Handles a request queued by {@link #postMessage}, on the executor.
+     *
+     * @see CustomTabsService#postMessage
+     */
+    protected abstract void onPostMessage(CustomTabsSessionToken sessionToken, String message,
+            Bundle extras);
+
+    /**
+     * Handles a request queued by {@link #validateRelationship}, on the executor.
+     *
+     * @see CustomTabsService#validateRelationship
+     * @return The result of the validation, sent to the client.
+     */
+    protected abstract boolean onValidateRelationship(CustomTabsSessionToken sessionToken,
+            @Relation int relation, Uri origin, Bundle extras);
+}
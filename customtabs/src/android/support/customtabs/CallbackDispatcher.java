@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.customtabs.CustomTabsService.Relation;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link CustomTabsCallback} of a {@link CustomTabsSessionToken} whose client lives in
+ * another process, used when the provider enables it with
+ * {@link CustomTabsService#setAsyncCallbacksEnabled}. Events are sent to the client from a
+ * background thread, so that the provider thread firing them never waits for the client.
+ * <p>
+ * Events are sent one at a time and in order. Navigation events superseded by a later one before
+ * being sent are dropped, as in {@link CoalescingCustomTabsCallback}. At most
+ * {@link #MAX_PENDING_EVENTS} events are kept. Beyond that, the oldest pending navigation event
+ * that a later one would supersede is dropped, and if there is none the client is cut off, as
+ * other events cannot be dropped silently. A client is also cut off when it has not returned from
+ * a call within {@link #STALL_TIMEOUT_MS}, or when no thread is available to send it its events.
+ * A client cut off is not sent any more events, and the provider is told.
+ */
+/* package */ final class CallbackDispatcher extends CustomTabsCallback {
+    private static final String TAG = "CallbackDispatcher";
+
+    @VisibleForTesting
+    static final int MAX_PENDING_EVENTS = 64;
+    @VisibleForTesting
+    static final long STALL_TIMEOUT_MS = 10000;
+    /** Maximum number of clients being sent events at the same time. */
+    private static final int MAX_DISPATCH_THREADS = 16;
+    /** Maximum number of clients waiting for a thread to be sent their events. */
+    private static final int MAX_QUEUED_CLIENTS = 256;
+
+    private static final int EVENT_NAVIGATION = 1;
+    private static final int EVENT_EXTRA_CALLBACK = 2;
+    private static final int EVENT_MESSAGE_CHANNEL_READY = 3;
+    private static final int EVENT_POST_MESSAGE = 4;
+    private static final int EVENT_RELATIONSHIP_VALIDATION_RESULT = 5;
+
+    /** Told when a client is cut off. */
+    interface CutOffListener {
+        /**
+         * Called once per client cut off, on the thread that fired the event or on the thread
+         * sending it, without any lock held.
+         *
+         * @param callbackBinder The {@link ICustomTabsCallback} binder of the client.
+         */
+        void onCutOff(IBinder callbackBinder);
+    }
+
+    /**
+     * Each thread waits for the client it is calling. A client still in a call after the stall
+     * timeout is cut off, and as it keeps its thread until it returns, the pool grows by one
+     * thread meanwhile, so that frozen clients do not take the threads of the others. Clients are
+     * cut off rather than queued without bounds when all the other threads are busy.
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_DISPATCH_THREADS, MAX_DISPATCH_THREADS, 10, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_CLIENTS));
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Checks whether the clients in a call have stalled. Created lazily. */
+    private static Handler sStallCheckHandler;
+
+    /**
+     * The dispatchers of the sessions, shared by all the tokens of a session. The values are weak
+     * as the dispatchers reference their key.
+     */
+    private static final Map<IBinder, WeakReference<CallbackDispatcher>> sDispatchers =
+            new WeakHashMap<>();
+
+    private static class Event {
+        final int mType;
+        final int mCode;
+        final String mName;
+        final Uri mOrigin;
+        final boolean mResult;
+        final Bundle mExtras;
+
+        Event(int type, int code, String name, Uri origin, boolean result, Bundle extras) {
+            mType = type;
+            mCode = code;
+            mName = name;
+            mOrigin = origin;
+            mResult = result;
+            // Copied, as the provider may change its extras once the call has returned.
+            mExtras = extras == null ? null : new Bundle(extras);
+        }
+
+        /**
+         * @return The non-zero group of navigation events superseding this one, or 0.
+         */
+        int getCoalescingGroup() {
+            return mType == EVENT_NAVIGATION
+                    ? CoalescingCustomTabsCallback.getNavigationCoalescingGroup(mCode) : 0;
+        }
+    }
+
+    private final ICustomTabsCallback mCallback;
+    private final Executor mExecutor;
+    private final long mStallTimeoutMs;
+    @Nullable private final CutOffListener mCutOffListener;
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private final Runnable mStallCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkStalled();
+        }
+    };
+
+    private List<Event> mPendingEvents = new ArrayList<>();
+    private boolean mDrainScheduled;
+    /** When the call in progress started, 0 if there is none. */
+    private long mCallStartMs;
+    private boolean mCutOff;
+    private boolean mCutOffNotified;
+    /** Whether the call in progress has stalled, and its thread been replaced in the pool. */
+    private boolean mThreadStalled;
+    private long mSentEventCount;
+    private long mCoalescedEventCount;
+    private long mDroppedEventCount;
+
+    /**
+     * @param cutOffListener Told when the client is cut off. Only the listener given when the
+     *                       dispatcher of the session is created is kept.
+     * @return The dispatcher of the session with the given callback.
+     */
+    static CallbackDispatcher forCallback(ICustomTabsCallback callback,
+            @Nullable CutOffListener cutOffListener) {
+        synchronized (sDispatchers) {
+            WeakReference<CallbackDispatcher> reference = sDispatchers.get(callback.asBinder());
+            CallbackDispatcher dispatcher = reference == null ? null : reference.get();
+            if (dispatcher == null) {
+                dispatcher = new CallbackDispatcher(
+                        callback, sExecutor, STALL_TIMEOUT_MS, cutOffListener);
+                sDispatchers.put(callback.asBinder(), new WeakReference<>(dispatcher));
+            }
+            return dispatcher;
+        }
+    }
+
+    @VisibleForTesting
+    CallbackDispatcher(ICustomTabsCallback callback, Executor executor, long stallTimeoutMs,
+            @Nullable CutOffListener cutOffListener) {
+        mCallback = callback;
+        mExecutor = executor;
+        mStallTimeoutMs = stallTimeoutMs;
+        mCutOffListener = cutOffListener;
+    }
+
+    @Override
+    public void onNavigationEvent(int navigationEvent, Bundle extras) {
+        enqueue(new Event(EVENT_NAVIGATION, navigationEvent, null, null, false, extras));
+    }
+
+    @Override
+    public void extraCallback(String callbackName, Bundle args) {
+        enqueue(new Event(EVENT_EXTRA_CALLBACK, 0, callbackName, null, false, args));
+    }
+
+    @Override
+    public void onMessageChannelReady(Bundle extras) {
+        enqueue(new Event(EVENT_MESSAGE_CHANNEL_READY, 0, null, null, false, extras));
+    }
+
+    @Override
+    public void onPostMessage(String message, Bundle extras) {
+        enqueue(new Event(EVENT_POST_MESSAGE, 0, message, null, false, extras));
+    }
+
+    @Override
+    public void onRelationshipValidationResult(@Relation int relation, Uri requestedOrigin,
+            boolean result, Bundle extras) {
+        enqueue(new Event(EVENT_RELATIONSHIP_VALIDATION_RESULT, relation, null,
+                requestedOrigin, result, extras));
+    }
+
+    /**
+     * @return Whether the client has been cut off, and is not sent any more events.
+     */
+    synchronized boolean isCutOff() {
+        return mCutOff;
+    }
+
+    /**
+     * @return The number of events sent to the client.
+     */
+    synchronized long getSentEventCount() {
+        return mSentEventCount;
+    }
+
+    /**
+     * @return The number of navigation events dropped because a later one superseded them.
+     */
+    synchronized long getCoalescedEventCount() {
+        return mCoalescedEventCount;
+    }
+
+    /**
+     * @return The number of events dropped because too many were pending, or because the client
+     *         was cut off.
+     */
+    synchronized long getDroppedEventCount() {
+        return mDroppedEventCount;
+    }
+
+    private void enqueue(Event event) {
+        boolean stalled = false;
+        boolean cutOff = false;
+        synchronized (this) {
+            if (mCutOff) {
+                mDroppedEventCount++;
+                return;
+            }
+            if (isStalledLocked()) {
+                onStalledLocked();
+                stalled = true;
+                cutOff = true;
+            } else if (!addLocked(event)) {
+                cutOffLocked("Client not keeping up with its events");
+                cutOff = true;
+            } else if (mDrainScheduled) {
+                return;
+            } else {
+                mDrainScheduled = true;
+            }
+            if (cutOff) mDroppedEventCount++;
+        }
+        if (stalled) resizePool(1);
+        if (cutOff) {
+            onCutOff();
+            return;
+        }
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mDrainScheduled = false;
+                cutOffLocked("No thread to send events on");
+            }
+            onCutOff();
+        }
+    }
+
+    /**
+     * Adds an event to the pending ones, dropping those it supersedes.
+     *
+     * @return Whether the event was added, false if too many are pending.
+     */
+    private boolean addLocked(Event event) {
+        int group = event.getCoalescingGroup();
+        if (group != 0) {
+            for (int i = mPendingEvents.size() - 1; i >= 0; i--) {
+                if (mPendingEvents.get(i).getCoalescingGroup() == group) {
+                    mPendingEvents.remove(i);
+                    mCoalescedEventCount++;
+                    break;
+                }
+            }
+        }
+        if (mPendingEvents.size() >= MAX_PENDING_EVENTS) {
+            // Only a navigation event that a later one will supersede can be dropped.
+            int evicted = -1;
+            for (int i = 0; i < mPendingEvents.size(); i++) {
+                if (mPendingEvents.get(i).getCoalescingGroup() != 0) {
+                    evicted = i;
+                    break;
+                }
+            }
+            if (evicted < 0) return false;
+            mPendingEvents.remove(evicted);
+            mDroppedEventCount++;
+        }
+        mPendingEvents.add(event);
+        return true;
+    }
+
+    private void cutOffLocked(String reason) {
+        if (mCutOff) return;
+        Log.w(TAG, reason + ", not sending it any more events.");
+        mCutOff = true;
+        mDroppedEventCount += mPendingEvents.size();
+        mPendingEvents.clear();
+    }
+
+    private boolean isStalledLocked() {
+        return mCallStartMs != 0 && !mThreadStalled
+                && SystemClock.elapsedRealtime() - mCallStartMs >= mStallTimeoutMs;
+    }
+
+    /**
+     * Cuts off the client in a stalled call. The caller must then add a thread to the pool in
+     * place of the one the call holds.
+     */
+    private void onStalledLocked() {
+        cutOffLocked("Client not responding");
+        mThreadStalled = true;
+    }
+
+    private void checkStalled() {
+        synchronized (this) {
+            if (!isStalledLocked()) return;
+            onStalledLocked();
+        }
+        resizePool(1);
+        onCutOff();
+    }
+
+    /** Tells the listener that the client has been cut off, once. */
+    private void onCutOff() {
+        synchronized (this) {
+            if (mCutOffNotified) return;
+            mCutOffNotified = true;
+        }
+        if (mCutOffListener != null) mCutOffListener.onCutOff(mCallback.asBinder());
+    }
+
+    /** Grows or shrinks the pool, if the executor is one, by the given number of threads. */
+    private void resizePool(int delta) {
+        if (!(mExecutor instanceof ThreadPoolExecutor)) return;
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) mExecutor;
+        synchronized (pool) {
+            // The maximum size can never be below the core one.
+            if (delta > 0) {
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+            } else {
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+            }
+        }
+    }
+
+    private static synchronized Handler getStallCheckHandler() {
+        if (sStallCheckHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sStallCheckHandler = new Handler(thread.getLooper());
+        }
+        return sStallCheckHandler;
+    }
+
+    private void drain() {
+        boolean finished = false;
+        try {
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    if (mPendingEvents.isEmpty() || mCutOff) {
+                        mDrainScheduled = false;
+                        finished = true;
+                        return;
+                    }
+                    event = mPendingEvents.remove(0);
+                    mCallStartMs = SystemClock.elapsedRealtime();
+                }
+                getStallCheckHandler().postDelayed(mStallCheckRunnable, mStallTimeoutMs);
+                boolean sent = false;
+                boolean dead = false;
+                boolean threadReturned;
+                try {
+                    send(event);
+                    sent = true;
+                } catch (DeadObjectException e) {
+                    dead = true;
+                } catch (RemoteException e) {
+                    Log.e(TAG, "RemoteException during ICustomTabsCallback transaction");
+                }
+                getStallCheckHandler().removeCallbacks(mStallCheckRunnable);
+                synchronized (this) {
+                    mCallStartMs = 0;
+                    if (sent) mSentEventCount++;
+                    if (dead) cutOffLocked("Client dead");
+                    threadReturned = mThreadStalled;
+                    mThreadStalled = false;
+                }
+                if (threadReturned) resizePool(-1);
+                if (dead) onCutOff();
+            }
+        } finally {
+            if (!finished) {
+                // Thrown from the call, a later event schedules a new drain.
+                getStallCheckHandler().removeCallbacks(mStallCheckRunnable);
+                boolean threadReturned;
+                synchronized (this) {
+                    mDrainScheduled = false;
+                    mCallStartMs = 0;
+                    threadReturned = mThreadStalled;
+                    mThreadStalled = false;
+                }
+                if (threadReturned) resizePool(-1);
+            }
+        }
+    }
+
+    private void send(Event event) throws RemoteException {
+        switch (event.mType) {
+            case EVENT_NAVIGATION:
+                mCallback.onNavigationEvent(event.mCode, event.mExtras);
+                break;
+            case EVENT_EXTRA_CALLBACK:
+                mCallback.extraCallback(event.mName, event.mExtras);
+                break;
+            case EVENT_MESSAGE_CHANNEL_READY:
+                mCallback.onMessageChannelReady(event.mExtras);
+                break;
+            case EVENT_POST_MESSAGE:
+                mCallback.onPostMessage(event.mName, event.mExtras);
+                break;
+            case EVENT_RELATIONSHIP_VALIDATION_RESULT:
+                mCallback.onRelationshipValidationResult(event.mCode, event.mOrigin,
+                        event.mResult, event.mExtras);
+                break;
+        }
+    }
+}
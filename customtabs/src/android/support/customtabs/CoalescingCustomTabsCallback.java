@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.customtabs.CustomTabsService.Relation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link CustomTabsCallback} that batches the events it receives and forwards them to another
+ * callback on the UI thread, at most once per batching window.
+ * <p>
+ * Navigation events that are superseded before being delivered are dropped: a page load state
+ * ({@link #NAVIGATION_STARTED}, {@link #NAVIGATION_FINISHED}, {@link #NAVIGATION_FAILED},
+ * {@link #NAVIGATION_ABORTED}) replaces any pending load state, and a visibility change
+ * ({@link #TAB_SHOWN}, {@link #TAB_HIDDEN}) replaces any pending visibility change. All the other
+ * events are delivered in order.
+ * <p>
+ * To avoid one UI thread message per event, pass this callback to
+ * {@link CustomTabsClient#newSession(CustomTabsCallback, java.util.concurrent.Executor)} with an
+ * executor that runs the events directly on the calling binder thread.
+ */
+public class CoalescingCustomTabsCallback extends CustomTabsCallback {
+    /** Default batching window, one frame at 60Hz. */
+    public static final long DEFAULT_BATCH_WINDOW_MS = 16;
+
+    private static final int EVENT_NAVIGATION = 1;
+    private static final int EVENT_EXTRA_CALLBACK = 2;
+    private static final int EVENT_MESSAGE_CHANNEL_READY = 3;
+    private static final int EVENT_POST_MESSAGE = 4;
+    private static final int EVENT_RELATIONSHIP_VALIDATION_RESULT = 5;
+
+    private static class Event {
+        final int mType;
+        final int mCode;
+        final String mName;
+        final Uri mOrigin;
+        final boolean mResult;
+        final Bundle mExtras;
+
+        Event(int type, int code, String name, Uri origin, boolean result, Bundle extras) {
+            mType = type;
+            mCode = code;
+            mName = name;
+            mOrigin = origin;
+            mResult = result;
+            mExtras = extras;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final CustomTabsCallback mDelegate;
+    private final long mBatchWindowMs;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private List<Event> mPendingEvents = new ArrayList<>();
+    private boolean mFlushScheduled;
+    private long mReceivedEventCount;
+    private long mCoalescedEventCount;
+    private long mDeliveredBatchCount;
+
+    /**
+     * @param delegate The callback the batched events are forwarded to, on the UI thread.
+     */
+    public CoalescingCustomTabsCallback(@NonNull CustomTabsCallback delegate) {
+        this(delegate, DEFAULT_BATCH_WINDOW_MS);
+    }
+
+    /**
+     * @param delegate      The callback the batched events are forwarded to, on the UI thread.
+     * @param batchWindowMs How long events are accumulated before being delivered.
+     */
+    public CoalescingCustomTabsCallback(@NonNull CustomTabsCallback delegate, long batchWindowMs) {
+        mDelegate = delegate;
+        mBatchWindowMs = batchWindowMs;
+    }
+
+    @Override
+    public void onNavigationEvent(int navigationEvent, Bundle extras) {
+        enqueue(new Event(EVENT_NAVIGATION, navigationEvent, null, null, false, extras));
+    }
+
+    @Override
+    public void extraCallback(String callbackName, Bundle args) {
+        enqueue(new Event(EVENT_EXTRA_CALLBACK, 0, callbackName, null, false, args));
+    }
+
+    @Override
+    public void onMessageChannelReady(Bundle extras) {
+        enqueue(new Event(EVENT_MESSAGE_CHANNEL_READY, 0, null, null, false, extras));
+    }
+
+    @Override
+    public void onPostMessage(String message, Bundle extras) {
+        enqueue(new Event(EVENT_POST_MESSAGE, 0, message, null, false, extras));
+    }
+
+    @Override
+    public void onRelationshipValidationResult(@Relation int relation, Uri requestedOrigin,
+            boolean result, Bundle extras) {
+        enqueue(new Event(EVENT_RELATIONSHIP_VALIDATION_RESULT, relation, null,
+                requestedOrigin, result, extras));
+    }
+
+    /**
+     * @return The number of events received from the browser so far.
+     */
+    public long getReceivedEventCount() {
+        synchronized (mLock) {
+            return mReceivedEventCount;
+        }
+    }
+
+    /**
+     * @return The number of events that were dropped because a later event superseded them.
+     */
+    public long getCoalescedEventCount() {
+        synchronized (mLock) {
+            return mCoalescedEventCount;
+        }
+    }
+
+    /**
+     * @return The number of batches delivered to the delegate so far.
+     */
+    public long getDeliveredBatchCount() {
+        synchronized (mLock) {
+            return mDeliveredBatchCount;
+        }
+    }
+
+    private void enqueue(Event event) {
+        synchronized (mLock) {
+            mReceivedEventCount++;
+            int group = getCoalescingGroup(event);
+            if (group != 0) {
+                for (int i = mPendingEvents.size() - 1; i >= 0; i--) {
+                    if (getCoalescingGroup(mPendingEvents.get(i)) == group) {
+                        mPendingEvents.remove(i);
+                        mCoalescedEventCount++;
+                        break;
+                    }
+                }
+            }
+            mPendingEvents.add(event);
+
+            if (mFlushScheduled) return;
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, mBatchWindowMs);
+    }
+
+    private static int getCoalescingGroup(Event event) {
+        return event.mType == EVENT_NAVIGATION ? getNavigationCoalescingGroup(event.mCode) : 0;
+    }
+
+    /**
+     * @return A non-zero identifier shared by the navigation events that supersede each other, 0
+     *         if the event should never be dropped.
+     */
+    /* package */ static int getNavigationCoalescingGroup(int navigationEvent) {
+        switch (navigationEvent) {
+            case NAVIGATION_STARTED:
+            case NAVIGATION_FINISHED:
+            case NAVIGATION_FAILED:
+            case NAVIGATION_ABORTED:
+                return 1;
+            case TAB_SHOWN:
+            case TAB_HIDDEN:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    private void flush() {
+        List<Event> events;
+        synchronized (mLock) {
+            events = mPendingEvents;
+            mPendingEvents = new ArrayList<>();
+            mFlushScheduled = false;
+            mDeliveredBatchCount++;
+        }
+        for (Event event : events) {
+            switch (event.mType) {
+                case EVENT_NAVIGATION:
+                    mDelegate.onNavigationEvent(event.mCode, event.mExtras);
+                    break;
+                case EVENT_EXTRA_CALLBACK:
+                    mDelegate.extraCallback(event.mName, event.mExtras);
+                    break;
+                case EVENT_MESSAGE_CHANNEL_READY:
+                    mDelegate.onMessageChannelReady(event.mExtras);
+                    break;
+                case EVENT_POST_MESSAGE:
+                    mDelegate.onPostMessage(event.mName, event.mExtras);
+                    break;
+                case EVENT_RELATIONSHIP_VALIDATION_RESULT:
+                    mDelegate.onRelationshipValidationResult(event.mCode, event.mOrigin,
+                            event.mResult, event.mExtras);
+                    break;
+            }
+        }
+    }
+}
@@ -101,7 +101,8 @@ public class CustomTabsCallback {
      * Called when a tab controlled by this {@link CustomTabsSession} has sent a postMessage.
      * If postMessage() is called from a single thread, then the messages will be posted in the
      * same order. When received on the client side, it is the client's responsibility to preserve
-     * the ordering further.
+     * the ordering further. Large messages streamed by the browser are received here in full,
+     * once read.
      *
      * @param message The message sent.
      * @param extras Reserved for future use.
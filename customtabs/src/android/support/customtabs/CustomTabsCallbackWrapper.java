@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.support.annotation.Nullable;
+import android.support.customtabs.CustomTabsService.Relation;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Client side {@link ICustomTabsCallback} implementation, forwarding the calls received from the
+ * browser to a {@link CustomTabsCallback}.
+ * <p>
+ * By default the callbacks are delivered on the UI thread through {@link Message}s, which are
+ * recycled by the framework so that no object is allocated per event. If an {@link Executor} is
+ * given, the callbacks are run on it instead.
+ */
+/* package */ class CustomTabsCallbackWrapper extends ICustomTabsCallback.Stub {
+    private static final int MSG_NAVIGATION_EVENT = 1;
+    private static final int MSG_EXTRA_CALLBACK = 2;
+    private static final int MSG_MESSAGE_CHANNEL_READY = 3;
+    private static final int MSG_POST_MESSAGE = 4;
+    private static final int MSG_RELATIONSHIP_VALIDATION_RESULT = 5;
+
+    @Nullable private final CustomTabsCallback mCallback;
+    @Nullable private final Executor mExecutor;
+    @Nullable private final Handler mHandler;
+
+    /**
+     * @param callback The callback to forward to. Can be null, in which case all the calls are
+     *                 dropped.
+     * @param executor The executor to run the callbacks on, or null for the UI thread.
+     */
+    CustomTabsCallbackWrapper(@Nullable CustomTabsCallback callback,
+            @Nullable Executor executor) {
+        mCallback = callback;
+        mExecutor = executor;
+        mHandler = executor == null && callback != null
+                ? new CallbackHandler(callback) : null;
+    }
+
+    @Override
+    public void onNavigationEvent(final int navigationEvent, final Bundle extras) {
+        if (mCallback == null) return;
+        if (mHandler != null) {
+            Message message = mHandler.obtainMessage(MSG_NAVIGATION_EVENT, navigationEvent, 0);
+            message.setData(extras);
+            mHandler.sendMessage(message);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onNavigationEvent(navigationEvent, extras);
+            }
+        });
+    }
+
+    @Override
+    public void extraCallback(final String callbackName, final Bundle args) {
+        if (mCallback == null) return;
+        if (mHandler != null) {
+            Message message = mHandler.obtainMessage(MSG_EXTRA_CALLBACK, callbackName);
+            message.setData(args);
+            mHandler.sendMessage(message);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.extraCallback(callbackName, args);
+            }
+        });
+    }
+
+    @Override
+    public void onMessageChannelReady(final Bundle extras) {
+        PostMessageStreams.onPeerExtras(asBinder(), extras);
+        if (mCallback == null) return;
+        if (mHandler != null) {
+            Message message = mHandler.obtainMessage(MSG_MESSAGE_CHANNEL_READY);
+            message.setData(extras);
+            mHandler.sendMessage(message);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onMessageChannelReady(extras);
+            }
+        });
+    }
+
+    @Override
+    public void onPostMessage(String postMessage, final Bundle extras) {
+        if (mCallback == null) {
+            PostMessageStreams.discardStream(extras);
+            return;
+        }
+        if (PostMessageStreams.hasStream(extras)) {
+            postMessage = PostMessageStreams.readStream(extras);
+            if (postMessage == null) return;
+        }
+        final String message = postMessage;
+        if (mHandler != null) {
+            Message handlerMessage = mHandler.obtainMessage(MSG_POST_MESSAGE, message);
+            handlerMessage.setData(extras);
+            mHandler.sendMessage(handlerMessage);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onPostMessage(message, extras);
+            }
+        });
+    }
+
+    @Override
+    public void onRelationshipValidationResult(
+            final @Relation int relation, final Uri requestedOrigin, final boolean result,
+            final @Nullable Bundle extras) {
+        if (mCallback == null) return;
+        if (mHandler != null) {
+            Message message = mHandler.obtainMessage(MSG_RELATIONSHIP_VALIDATION_RESULT,
+                    relation, result ? 1 : 0, requestedOrigin);
+            message.setData(extras);
+            mHandler.sendMessage(message);
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onRelationshipValidationResult(
+                        relation, requestedOrigin, result, extras);
+            }
+        });
+    }
+
+    /**
+     * Unpacks the {@link Message}s posted by the wrapper on the UI thread. The extras are carried
+     * as the message data, {@link Message#peekData()} is used so that a null Bundle stays null.
+     */
+    private static class CallbackHandler extends Handler {
+        private final CustomTabsCallback mCallback;
+
+        CallbackHandler(CustomTabsCallback callback) {
+            super(Looper.getMainLooper());
+            mCallback = callback;
+        }
+
+        @Override
+        public void handleMessage(Message message) {
+            switch (message.what) {
+                case MSG_NAVIGATION_EVENT:
+                    mCallback.onNavigationEvent(message.arg1, message.peekData());
+                    break;
+                case MSG_EXTRA_CALLBACK:
+                    mCallback.extraCallback((String) message.obj, message.peekData());
+                    break;
+                case MSG_MESSAGE_CHANNEL_READY:
+                    mCallback.onMessageChannelReady(message.peekData());
+                    break;
+                case MSG_POST_MESSAGE:
+                    mCallback.onPostMessage((String) message.obj, message.peekData());
+                    break;
+                case MSG_RELATIONSHIP_VALIDATION_RESULT:
+                    mCallback.onRelationshipValidationResult(message.arg1, (Uri) message.obj,
+                            message.arg2 != 0, message.peekData());
+                    break;
+                default:
+                    super.handleMessage(message);
+            }
+        }
+    }
+}
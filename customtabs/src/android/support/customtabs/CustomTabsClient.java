@@ -25,16 +25,15 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.RemoteException;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.customtabs.CustomTabsService.Relation;
 import android.support.customtabs.trusted.TrustedWebActivityService;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Class to communicate with a {@link CustomTabsService} and create
@@ -74,6 +73,27 @@ public class CustomTabsClient {
                 Context.BIND_AUTO_CREATE | Context.BIND_WAIVE_PRIORITY);
     }
 
+    /**
+     * Bind to a {@link CustomTabsService} using the given package name, and return the resulting
+     * {@link CustomTabsClient} as a {@link CustomTabsClientFuture}.
+     *
+     * This allows binding to run in parallel with other initialization work, and to give up if the
+     * provider does not connect in time. The binding is held until
+     * {@link CustomTabsClientFuture#unbind()} is called or the future is cancelled.
+     *
+     * @param context     {@link Context} to use for binding. Only its application context is used.
+     * @param packageName Package name of the target implementation.
+     * @param timeoutMs   Time to wait for the connection before failing with a
+     *                    {@link java.util.concurrent.TimeoutException}.
+     * @return The pending client.
+     */
+    public static CustomTabsClientFuture bindCustomTabsServiceAsync(Context context,
+            String packageName, long timeoutMs) {
+        CustomTabsClientFuture future = new CustomTabsClientFuture(context, packageName);
+        future.start(timeoutMs);
+        return future;
+    }
+
     /**
      * Returns the preferred package to use for Custom Tabs, preferring the default VIEW handler.
      *
@@ -90,6 +110,9 @@ public class CustomTabsClient {
      * Tabs. To modify this preferred behavior, set <code>ignoreDefault</code> to true and give a
      * non empty list of package names in <code>packages</code>.
      *
+     * This queries the {@link PackageManager} for every candidate package. Callers that need the
+     * answer repeatedly should use {@link CustomTabsPackageIndex} instead.
+     *
      * @param context       {@link Context} to use for querying the packages.
      * @param packages      Ordered list of packages to test for Custom Tabs support, in
      *                      decreasing order of priority.
@@ -137,6 +160,8 @@ public class CustomTabsClient {
      */
     public static boolean connectAndInitialize(Context context, String packageName) {
         if (packageName == null) return false;
+        // Nothing to do if the current browser process has already been warmed up.
+        if (WarmupManager.getInstance().isWarmedUp(packageName)) return true;
         final Context applicationContext = context.getApplicationContext();
         CustomTabsServiceConnection connection = new CustomTabsServiceConnection() {
             @Override
@@ -164,22 +189,19 @@ public class CustomTabsClient {
      *
      * Allows the browser application to pre-initialize itself in the background. Significantly
      * speeds up URL opening in the browser. This is asynchronous and can be called several times.
+     * Only the first successful call for a given browser process reaches the browser, later ones
+     * return true immediately.
      *
      * @param flags Reserved for future use.
      * @return      Whether the warmup was successful.
      */
     public boolean warmup(long flags) {
-        try {
-            return mService.warmup(flags);
-        } catch (RemoteException e) {
-            return false;
-        }
+        return WarmupManager.getInstance().warmup(
+                mService, mServiceComponentName.getPackageName(), flags);
     }
 
     private static PendingIntent createSessionId(Context context, int sessionId) {
-        // Create a {@link PendingIntent} with empty Action to prevent using it other than
-        // a session identifier.
-        return PendingIntent.getActivity(context, sessionId, new Intent(), 0);
+        return SessionIdCache.getPendingIntent(context, sessionId);
     }
 
     /**
@@ -194,7 +216,23 @@ public class CustomTabsClient {
      *         Null on error.
      */
     public @Nullable CustomTabsSession newSession(final CustomTabsCallback callback) {
-        return newSessionInternal(callback, null);
+        return newSessionInternal(callback, null, null);
+    }
+
+    /**
+     * Creates a new session through an ICustomTabsService with the optional callback, delivering
+     * the callbacks on the given {@link Executor} instead of the UI thread. This allows clients
+     * with a lot of callback traffic, such as postMessage, to process it in the background.
+     * @param callback The callback through which the client will receive updates about the created
+     *                 session. Can be null.
+     * @param executor The executor the callbacks will be run on.
+     * @return The session object that was created as a result of the transaction. The client can
+     *         use this to relay session specific calls.
+     *         Null on error.
+     */
+    public @Nullable CustomTabsSession newSession(final CustomTabsCallback callback,
+            @NonNull Executor executor) {
+        return newSessionInternal(callback, null, executor);
     }
 
     /**
@@ -212,7 +250,7 @@ public class CustomTabsClient {
      *         Null on error.
      */
     public @Nullable CustomTabsSession newSession(final CustomTabsCallback callback, int id) {
-        return newSessionInternal(callback, createSessionId(mApplicationContext, id));
+        return newSessionInternal(callback, createSessionId(mApplicationContext, id), null);
     }
 
     /**
@@ -229,8 +267,8 @@ public class CustomTabsClient {
     }
 
     private @Nullable CustomTabsSession newSessionInternal(final CustomTabsCallback callback,
-                @Nullable PendingIntent sessionId) {
-        ICustomTabsCallback.Stub wrapper = createCallbackWrapper(callback);
+                @Nullable PendingIntent sessionId, @Nullable Executor executor) {
+        ICustomTabsCallback.Stub wrapper = new CustomTabsCallbackWrapper(callback, executor);
         Bundle extras = new Bundle();
         if (sessionId != null) extras.putParcelable(CustomTabsIntent.EXTRA_SESSION_ID, sessionId);
         try {
@@ -249,81 +287,11 @@ public class CustomTabsClient {
         }
     }
 
-    private ICustomTabsCallback.Stub createCallbackWrapper(final CustomTabsCallback callback) {
-        return new ICustomTabsCallback.Stub() {
-            private Handler mHandler = new Handler(Looper.getMainLooper());
-
-            @Override
-            public void onNavigationEvent(final int navigationEvent, final Bundle extras) {
-                if (callback == null) return;
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onNavigationEvent(navigationEvent, extras);
-                    }
-                });
-            }
-
-            @Override
-            public void extraCallback(final String callbackName, final Bundle args)
-                    throws RemoteException {
-                if (callback == null) return;
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.extraCallback(callbackName, args);
-                    }
-                });
-            }
-
-            @Override
-            public void onMessageChannelReady(final Bundle extras)
-                    throws RemoteException {
-                if (callback == null) return;
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onMessageChannelReady(extras);
-                    }
-                });
-            }
-
-            @Override
-            public void onPostMessage(final String message, final Bundle extras)
-                    throws RemoteException {
-                if (callback == null) return;
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onPostMessage(message, extras);
-                    }
-                });
-            }
-
-            @Override
-            public void onRelationshipValidationResult(
-                    final @Relation int relation, final Uri requestedOrigin, final boolean result,
-                    final @Nullable Bundle extras) throws RemoteException {
-                if (callback == null) return;
-
-                // Do something with mServiceComponentName.
-
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        callback.onRelationshipValidationResult(
-                                relation, requestedOrigin, result, extras);
-                    }
-                });
-            }
-        };
-    }
-
     /**
      * Associate {@link CustomTabsSession.PendingSession} with the service
      * and turn it into a {@link CustomTabsSession}.
      */
     public CustomTabsSession attachSession(CustomTabsSession.PendingSession session) {
-        return newSessionInternal(session.getCallback(), session.getId());
+        return newSessionInternal(session.getCallback(), session.getId(), null);
     }
 }
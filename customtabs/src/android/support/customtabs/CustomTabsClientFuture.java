@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of {@link CustomTabsClient#bindCustomTabsServiceAsync}.
+ * <p>
+ * The future completes with the connected {@link CustomTabsClient}, or fails with an
+ * {@link ExecutionException} whose cause is a {@link TimeoutException} if the service did not
+ * connect in time, or an {@link IllegalStateException} if the service could not be bound.
+ * Cancelling the future drops the binding.
+ * <p>
+ * Once the future has completed successfully the binding is kept until {@link #unbind()} is
+ * called.
+ * <p>
+ * The connection is delivered on the main thread, so {@link #get()} must not be called from it.
+ * Use {@link #addListener} there instead.
+ */
+public final class CustomTabsClientFuture implements Future<CustomTabsClient> {
+    private final Object mLock = new Object();
+    private final Context mApplicationContext;
+    private final String mPackageName;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> mListeners = new ArrayList<>();
+    private final List<Executor> mListenerExecutors = new ArrayList<>();
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (complete(null, new TimeoutException(
+                    "Timed out while connecting to " + mPackageName), false)) {
+                unbind();
+            }
+        }
+    };
+
+    private final CustomTabsServiceConnection mConnection = new CustomTabsServiceConnection() {
+        @Override
+        public void onCustomTabsServiceConnected(ComponentName name, CustomTabsClient client) {
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            // The result may already have been set by a timeout or a cancellation.
+            if (!complete(client, null, false)) unbind();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {}
+    };
+
+    private boolean mBound;
+    private boolean mDone;
+    private boolean mCancelled;
+    private CustomTabsClient mClient;
+    private Throwable mFailure;
+
+    /* package */ CustomTabsClientFuture(Context context, String packageName) {
+        mApplicationContext = context.getApplicationContext();
+        mPackageName = packageName;
+    }
+
+    /* package */ void start(long timeoutMs) {
+        boolean bound;
+        try {
+            bound = CustomTabsClient.bindCustomTabsService(
+                    mApplicationContext, mPackageName, mConnection);
+        } catch (SecurityException e) {
+            complete(null, e, false);
+            return;
+        }
+        synchronized (mLock) {
+            mBound = true;
+        }
+        if (!bound) {
+            complete(null, new IllegalStateException("Could not bind to " + mPackageName), false);
+            unbind();
+            return;
+        }
+        mHandler.postDelayed(mTimeoutRunnable, timeoutMs);
+    }
+
+    /**
+     * Registers a listener to be run on the given executor once the future completes. If the
+     * future has already completed, the listener is run immediately.
+     */
+    public void addListener(@NonNull Runnable listener, @NonNull Executor executor) {
+        synchronized (mLock) {
+            if (!mDone) {
+                mListeners.add(listener);
+                mListenerExecutors.add(executor);
+                return;
+            }
+        }
+        executor.execute(listener);
+    }
+
+    /**
+     * Drops the binding to the service. The {@link CustomTabsClient} must not be used after this.
+     */
+    public void unbind() {
+        synchronized (mLock) {
+            if (!mBound) return;
+            mBound = false;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mApplicationContext.unbindService(mConnection);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(null, null, true)) return false;
+        unbind();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mCancelled;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mDone;
+        }
+    }
+
+    /**
+     * Waits for the connection.
+     *
+     * @throws IllegalStateException If called on the main thread, which the connection is
+     *                               delivered on.
+     */
+    @Override
+    public CustomTabsClient get() throws InterruptedException, ExecutionException {
+        checkNotMainThread();
+        synchronized (mLock) {
+            while (!mDone) mLock.wait();
+            return getResultLocked();
+        }
+    }
+
+    /**
+     * Waits for the connection, at most for the given time.
+     *
+     * @throws IllegalStateException If called on the main thread, which the connection is
+     *                               delivered on.
+     */
+    @Override
+    public CustomTabsClient get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        checkNotMainThread();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (!mDone) {
+                long remainingNs = deadline - System.nanoTime();
+                if (remainingNs <= 0) throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(mLock, remainingNs);
+            }
+            return getResultLocked();
+        }
+    }
+
+    private static void checkNotMainThread() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("Cannot wait for the connection on the main thread");
+        }
+    }
+
+    private CustomTabsClient getResultLocked() throws ExecutionException {
+        if (mCancelled) throw new CancellationException();
+        if (mFailure != null) throw new ExecutionException(mFailure);
+        return mClient;
+    }
+
+    /** @return Whether this call completed the future. */
+    private boolean complete(@Nullable CustomTabsClient client, @Nullable Throwable failure,
+            boolean cancelled) {
+        List<Runnable> listeners;
+        List<Executor> executors;
+        synchronized (mLock) {
+            if (mDone) return false;
+            mDone = true;
+            mClient = client;
+            mFailure = failure;
+            mCancelled = cancelled;
+            mLock.notifyAll();
+
+            listeners = new ArrayList<>(mListeners);
+            executors = new ArrayList<>(mListenerExecutors);
+            mListeners.clear();
+            mListenerExecutors.clear();
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            executors.get(i).execute(listeners.get(i));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a single {@link CustomTabsService} binding per provider package across the whole
+ * application.
+ * <p>
+ * Instead of binding in every {@code Activity#onStart} and unbinding in every
+ * {@code Activity#onStop}, screens {@link #acquire} a {@link Lease} and {@link Lease#release} it
+ * when they are done. The binding is kept while at least one lease is held and for a grace period
+ * after the last one is released, so moving between screens does not reconnect to the service.
+ * <p>
+ * This class should only be used on the UI thread.
+ */
+public class CustomTabsConnectionPool {
+    private static final String TAG = "CustomTabsConnPool";
+
+    /** Default time a binding is kept after its last lease has been released. */
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 10000;
+
+    private static CustomTabsConnectionPool sInstance;
+
+    /**
+     * Receives the state of the connection a {@link Lease} refers to. All the callbacks are
+     * called on the UI thread.
+     */
+    public static class LeaseCallback {
+        /**
+         * Called when the {@link CustomTabsClient} is available. If the pool is already connected,
+         * this is called synchronously from {@link #acquire}.
+         * @param client The shared client. It must not be used after the lease is released.
+         */
+        public void onClientReady(@NonNull CustomTabsClient client) {}
+
+        /**
+         * Called when the connection to the service has been lost. The pool stays bound, and
+         * {@link #onClientReady} will be called again if the service comes back.
+         */
+        public void onClientDisconnected() {}
+    }
+
+    /**
+     * A reference to the shared connection to a provider.
+     */
+    public final class Lease {
+        private final Connection mConnection;
+        private final LeaseCallback mCallback;
+        private boolean mReleased;
+
+        private Lease(Connection connection, LeaseCallback callback) {
+            mConnection = connection;
+            mCallback = callback;
+        }
+
+        /**
+         * @return The shared {@link CustomTabsClient}, or null if the service is not connected or
+         *         the lease has been released.
+         */
+        public @Nullable CustomTabsClient getClient() {
+            return mReleased ? null : mConnection.mClient;
+        }
+
+        /**
+         * Releases this lease. The binding is dropped after the idle timeout if no other lease
+         * is held. Calling this more than once has no effect.
+         */
+        public void release() {
+            if (mReleased) return;
+            mReleased = true;
+            mConnection.removeLease(this);
+        }
+    }
+
+    private class Connection extends CustomTabsServiceConnection {
+        private final String mPackageName;
+        private final List<Lease> mLeases = new ArrayList<>();
+        private final Runnable mUnbindRunnable = new Runnable() {
+            @Override
+            public void run() {
+                unbind();
+            }
+        };
+        private CustomTabsClient mClient;
+
+        Connection(String packageName) {
+            mPackageName = packageName;
+        }
+
+        @Override
+        public void onCustomTabsServiceConnected(ComponentName name, CustomTabsClient client) {
+            mClient = client;
+            for (Lease lease : new ArrayList<>(mLeases)) {
+                lease.mCallback.onClientReady(client);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mClient = null;
+            for (Lease lease : new ArrayList<>(mLeases)) {
+                lease.mCallback.onClientDisconnected();
+            }
+        }
+
+        void addLease(Lease lease) {
+            mHandler.removeCallbacks(mUnbindRunnable);
+            mLeases.add(lease);
+            if (mClient != null) lease.mCallback.onClientReady(mClient);
+        }
+
+        void removeLease(Lease lease) {
+            mLeases.remove(lease);
+            if (!mLeases.isEmpty()) return;
+            mHandler.postDelayed(mUnbindRunnable, mIdleTimeoutMs);
+        }
+
+        void unbind() {
+            mConnections.remove(mPackageName);
+            mClient = null;
+            try {
+                mContext.unbindService(this);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Connection to " + mPackageName + " was not bound.", e);
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Map from provider package name to Connection. */
+    private final Map<String, Connection> mConnections = new HashMap<>();
+    private long mIdleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    /**
+     * @param context A Context used for binding. Only its application context is retained.
+     * @return The application-wide connection pool.
+     */
+    public static CustomTabsConnectionPool getInstance(Context context) {
+        if (sInstance == null) sInstance = new CustomTabsConnectionPool(context);
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    /* package */ CustomTabsConnectionPool(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Sets how long a binding is kept once nobody holds a lease on it anymore. Only affects
+     * leases released after this call.
+     * @param idleTimeoutMs The grace period in milliseconds.
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Acquires a lease on the connection to the given provider, binding to it if needed.
+     *
+     * @param packageName The package of the {@link CustomTabsService} provider.
+     * @param callback    Notified when the client is ready, possibly synchronously.
+     * @return The lease, or null if the service could not be bound.
+     */
+    public @Nullable Lease acquire(@NonNull String packageName, @NonNull LeaseCallback callback) {
+        Connection connection = mConnections.get(packageName);
+        if (connection == null) {
+            connection = new Connection(packageName);
+            try {
+                if (!CustomTabsClient.bindCustomTabsService(mContext, packageName, connection)) {
+                    mContext.unbindService(connection);
+                    return null;
+                }
+            } catch (SecurityException e) {
+                Log.w(TAG, "SecurityException while binding.", e);
+                return null;
+            }
+            mConnections.put(packageName, connection);
+        }
+
+        Lease lease = new Lease(connection, callback);
+        connection.addLease(lease);
+        return lease;
+    }
+
+    /**
+     * @return Whether the pool currently holds a binding to the given provider.
+     */
+    public boolean isBound(@NonNull String packageName) {
+        return mConnections.containsKey(packageName);
+    }
+}
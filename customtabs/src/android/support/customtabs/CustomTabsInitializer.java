@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Binds to and warms up the Custom Tabs provider while the application process starts, so that
+ * activities find a connected client in {@link CustomTabsConnectionPool} by the time they need
+ * one, instead of binding once their UI is already on screen.
+ * <p>
+ * The provider package is resolved on a background thread through
+ * {@link CustomTabsPackageIndex}, then the binding is started on the UI thread and the provider
+ * is warmed up on a background thread once connected. The binding is held for
+ * {@link #DEFAULT_HOLD_TIME_MS} from when it is started, whether or not the provider connects,
+ * after which the usual idle timeout of the pool applies.
+ * <p>
+ * This is opt-in. Either declare the provider in the application's manifest:
+ * <pre>
+ * &lt;provider
+ *     android:name="android.support.customtabs.CustomTabsInitializer"
+ *     android:authorities="${applicationId}.customtabs-initializer"
+ *     android:exported="false" /&gt;
+ * </pre>
+ * or call {@link #initialize(Context)} from {@link android.app.Application#onCreate()}.
+ */
+public class CustomTabsInitializer extends ContentProvider {
+    /** Default time the binding is held once started. */
+    public static final long DEFAULT_HOLD_TIME_MS = 30000;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static volatile String sPackageName;
+    private static boolean sInitialized;
+
+    /**
+     * Pre-binds to the preferred Custom Tabs provider, as returned by
+     * {@link CustomTabsClient#getPackageName(Context, List)} with no fallback package.
+     *
+     * @param context A Context. Only its application context is retained.
+     */
+    public static void initialize(@NonNull Context context) {
+        initialize(context, null, false, DEFAULT_HOLD_TIME_MS);
+    }
+
+    /**
+     * Pre-binds to the preferred Custom Tabs provider. Only the first call has an effect.
+     *
+     * @param context       A Context. Only its application context is retained.
+     * @param packages      Ordered list of packages to consider, see
+     *                      {@link CustomTabsClient#getPackageName(Context, List, boolean)}.
+     * @param ignoreDefault If set, the default VIEW handler won't get priority over other browsers.
+     * @param holdTimeMs    How long to hold the binding once started.
+     */
+    public static void initialize(@NonNull Context context, @Nullable final List<String> packages,
+            final boolean ignoreDefault, final long holdTimeMs) {
+        synchronized (CustomTabsInitializer.class) {
+            if (sInitialized) return;
+            sInitialized = true;
+        }
+
+        final Context applicationContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String packageName = CustomTabsPackageIndex.getInstance(applicationContext)
+                        .getPackageName(packages, ignoreDefault);
+                if (packageName == null) return;
+                sPackageName = packageName;
+                sHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        bindAndWarmup(applicationContext, packageName, holdTimeMs);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The package of the provider the initializer has bound to, or null if it has not
+     *         been resolved yet or no provider is available.
+     */
+    public static @Nullable String getPackageName() {
+        return sPackageName;
+    }
+
+    private static void bindAndWarmup(Context context, String packageName, final long holdTimeMs) {
+        final CustomTabsConnectionPool.Lease lease = CustomTabsConnectionPool.getInstance(context)
+                .acquire(packageName, new CustomTabsConnectionPool.LeaseCallback() {
+                    private boolean mWarmedUp;
+
+                    @Override
+                    public void onClientReady(@NonNull final CustomTabsClient client) {
+                        if (mWarmedUp) return;
+                        mWarmedUp = true;
+                        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                client.warmup(0);
+                            }
+                        });
+                    }
+                });
+        if (lease == null) return;
+        // Released even if the provider never connects, so that a missing or broken provider
+        // is not kept bound for the life of the process.
+        sHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                lease.release();
+            }
+        }, holdTimeMs);
+    }
+
+    @Override
+    public boolean onCreate() {
+        initialize(getContext());
+        return true;
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        return 0;
+    }
+}
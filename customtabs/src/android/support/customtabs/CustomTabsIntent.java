@@ -354,7 +354,7 @@ public final class CustomTabsIntent {
          * @param icon The icon {@link Bitmap}
          */
         public Builder setCloseButtonIcon(@NonNull Bitmap icon) {
-            mIntent.putExtra(EXTRA_CLOSE_BUTTON_ICON, icon);
+            mIntent.putExtra(EXTRA_CLOSE_BUTTON_ICON, ToolbarIcons.prepare(icon));
             return this;
         }
 
@@ -410,7 +410,7 @@ public final class CustomTabsIntent {
                 @NonNull PendingIntent pendingIntent, boolean shouldTint) {
             Bundle bundle = new Bundle();
             bundle.putInt(KEY_ID, TOOLBAR_ACTION_BUTTON_ID);
-            bundle.putParcelable(KEY_ICON, icon);
+            bundle.putParcelable(KEY_ICON, ToolbarIcons.prepare(icon));
             bundle.putString(KEY_DESCRIPTION, description);
             bundle.putParcelable(KEY_PENDING_INTENT, pendingIntent);
             mIntent.putExtra(EXTRA_ACTION_BUTTON_BUNDLE, bundle);
@@ -459,7 +459,7 @@ public final class CustomTabsIntent {
             }
             Bundle bundle = new Bundle();
             bundle.putInt(KEY_ID, id);
-            bundle.putParcelable(KEY_ICON, icon);
+            bundle.putParcelable(KEY_ICON, ToolbarIcons.prepare(icon));
             bundle.putString(KEY_DESCRIPTION, description);
             bundle.putParcelable(KEY_PENDING_INTENT, pendingIntent);
             mActionButtons.add(bundle);
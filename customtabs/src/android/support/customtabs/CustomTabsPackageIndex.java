@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A process-wide index of the packages that provide a {@link CustomTabsService}.
+ *
+ * <p>
+ * {@link CustomTabsClient#getPackageName(Context, List, boolean)} asks the
+ * {@link PackageManager} about every candidate package on every call. This index performs a
+ * single query the first time it is used and afterwards keeps itself up to date by listening to
+ * {@link Intent#ACTION_PACKAGE_ADDED}, {@link Intent#ACTION_PACKAGE_REMOVED} and
+ * {@link Intent#ACTION_PACKAGE_CHANGED} broadcasts, so that lookups do not need any IPC.
+ *
+ * <p>
+ * The default VIEW handler is cached as well and re-resolved after any package broadcast. The
+ * system does not broadcast changes of the user's default browser, so clients that want to pick
+ * these up immediately (for instance when returning from the system settings) should call
+ * {@link #invalidate()}.
+ */
+public class CustomTabsPackageIndex {
+    /**
+     * The {@link PackageManager} queries performed by the index. Each method corresponds to one
+     * IPC to the system.
+     */
+    /* package */ interface Resolver {
+        /** @return The package of the default handler for http VIEW intents, or null. */
+        @Nullable String resolveDefaultViewHandler();
+
+        /** @return All the packages that provide a {@link CustomTabsService}. */
+        @NonNull List<String> queryCustomTabsProviders();
+
+        /** @return Whether the given package provides a {@link CustomTabsService}. */
+        boolean supportsCustomTabs(String packageName);
+    }
+
+    private static final Object sInstanceLock = new Object();
+    private static CustomTabsPackageIndex sInstance;
+
+    private final Object mLock = new Object();
+    private final Resolver mResolver;
+
+    /** Packages providing a {@link CustomTabsService}, null until the first query. */
+    @Nullable private Set<String> mProviders;
+    @Nullable private String mDefaultViewHandler;
+    private boolean mDefaultViewHandlerResolved;
+
+    /**
+     * Returns the process-wide index, creating it and registering for package broadcasts on the
+     * first call. Nothing is resolved until the index is first queried.
+     *
+     * @param context {@link Context} to use for querying the packages.
+     */
+    public static CustomTabsPackageIndex getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                Context applicationContext = context.getApplicationContext();
+                sInstance = new CustomTabsPackageIndex(
+                        new PackageManagerResolver(applicationContext.getPackageManager()));
+                sInstance.registerPackageReceiver(applicationContext);
+            }
+            return sInstance;
+        }
+    }
+
+    @VisibleForTesting
+    /* package */ CustomTabsPackageIndex(Resolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Returns the preferred package to use for Custom Tabs, with the same semantics as
+     * {@link CustomTabsClient#getPackageName(Context, List, boolean)}.
+     *
+     * @param packages      Ordered list of packages to test for Custom Tabs support, in
+     *                      decreasing order of priority.
+     * @param ignoreDefault If set, the default VIEW handler won't get priority over other browsers.
+     * @return The preferred package name for handling Custom Tabs, or <code>null</code>.
+     */
+    public @Nullable String getPackageName(@Nullable List<String> packages,
+            boolean ignoreDefault) {
+        synchronized (mLock) {
+            ensureProvidersLocked();
+            if (!ignoreDefault) {
+                String defaultViewHandler = getDefaultViewHandlerLocked();
+                if (defaultViewHandler != null && mProviders.contains(defaultViewHandler)) {
+                    return defaultViewHandler;
+                }
+            }
+            if (packages == null) return null;
+            for (String packageName : packages) {
+                if (mProviders.contains(packageName)) return packageName;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether the given package provides a {@link CustomTabsService}.
+     */
+    public boolean supportsCustomTabs(String packageName) {
+        synchronized (mLock) {
+            ensureProvidersLocked();
+            return mProviders.contains(packageName);
+        }
+    }
+
+    /**
+     * Drops all the cached state. The next query will hit the {@link PackageManager} again.
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mProviders = null;
+            mDefaultViewHandlerResolved = false;
+            mDefaultViewHandler = null;
+        }
+    }
+
+    /**
+     * Updates the index for a single package after a package broadcast.
+     *
+     * @param packageName The package that has been added, changed or removed.
+     * @param removed     Whether the package is gone for good.
+     */
+    /* package */ void onPackageChanged(String packageName, boolean removed) {
+        synchronized (mLock) {
+            // Any package change may affect which activity handles VIEW intents.
+            mDefaultViewHandlerResolved = false;
+            mDefaultViewHandler = null;
+
+            // Nothing to update incrementally if the full list has not been queried yet.
+            if (mProviders == null) return;
+            if (removed || !mResolver.supportsCustomTabs(packageName)) {
+                mProviders.remove(packageName);
+            } else {
+                mProviders.add(packageName);
+            }
+        }
+    }
+
+    private void ensureProvidersLocked() {
+        if (mProviders != null) return;
+        mProviders = new HashSet<>(mResolver.queryCustomTabsProviders());
+    }
+
+    private @Nullable String getDefaultViewHandlerLocked() {
+        if (!mDefaultViewHandlerResolved) {
+            mDefaultViewHandler = mResolver.resolveDefaultViewHandler();
+            mDefaultViewHandlerResolved = true;
+        }
+        return mDefaultViewHandler;
+    }
+
+    private void registerPackageReceiver(Context applicationContext) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        applicationContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                String packageName = data == null ? null : data.getSchemeSpecificPart();
+                if (TextUtils.isEmpty(packageName)) return;
+
+                // A package being updated is removed then added again, only the final state
+                // matters.
+                boolean removed = Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                        && !intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+                onPackageChanged(packageName, removed);
+            }
+        }, filter);
+    }
+
+    private static class PackageManagerResolver implements Resolver {
+        private final PackageManager mPackageManager;
+
+        PackageManagerResolver(PackageManager packageManager) {
+            mPackageManager = packageManager;
+        }
+
+        @Override
+        public @Nullable String resolveDefaultViewHandler() {
+            Intent activityIntent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://"));
+            ResolveInfo info = mPackageManager.resolveActivity(activityIntent, 0);
+            return info == null ? null : info.activityInfo.packageName;
+        }
+
+        @Override
+        public @NonNull List<String> queryCustomTabsProviders() {
+            Intent serviceIntent = new Intent(CustomTabsService.ACTION_CUSTOM_TABS_CONNECTION);
+            List<ResolveInfo> infos = mPackageManager.queryIntentServices(serviceIntent, 0);
+            List<String> packageNames = new ArrayList<>();
+            if (infos == null) return packageNames;
+            for (ResolveInfo info : infos) {
+                packageNames.add(info.serviceInfo.packageName);
+            }
+            return packageNames;
+        }
+
+        @Override
+        public boolean supportsCustomTabs(String packageName) {
+            Intent serviceIntent = new Intent(CustomTabsService.ACTION_CUSTOM_TABS_CONNECTION);
+            serviceIntent.setPackage(packageName);
+            return mPackageManager.resolveService(serviceIntent, 0) != null;
+        }
+    }
+}
@@ -20,18 +20,21 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.IBinder.DeathRecipient;
 import android.os.RemoteException;
 import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
-import android.support.v4.util.ArrayMap;
+import android.support.v4.app.BundleCompat;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -97,7 +100,41 @@ public abstract class CustomTabsService extends Service {
      */
     public static final int RELATION_HANDLE_ALL_URLS = 2;
 
-    private final Map<IBinder, DeathRecipient> mDeathRecipientMap = new ArrayMap<>();
+    /**
+     * {@link #extraCommand} handled by the library, sending a list of postMessage requests in a
+     * single transaction. Browsers not built against this version return null for it.
+     */
+    /* package */ static final String COMMAND_POST_MESSAGE_BATCH =
+            "android.support.customtabs.command.POST_MESSAGE_BATCH";
+    /** Binder of the {@link ICustomTabsCallback} of the session sending a library command. */
+    /* package */ static final String KEY_SESSION_CALLBACK =
+            "android.support.customtabs.session.CALLBACK";
+    /** String list of the messages of a batch. */
+    /* package */ static final String KEY_POST_MESSAGE_MESSAGES =
+            "android.support.customtabs.postmessage.MESSAGES";
+    /** Int array of the {@link Result} of each message of a batch. */
+    /* package */ static final String KEY_POST_MESSAGE_RESULTS =
+            "android.support.customtabs.postmessage.RESULTS";
+    /**
+     * {@link #extraCommand} handled by the library, opening a {@link PostMessageRing} for the
+     * session. Browsers not built against this version return null for it.
+     */
+    /* package */ static final String COMMAND_OPEN_POST_MESSAGE_RING =
+            "android.support.customtabs.command.OPEN_POST_MESSAGE_RING";
+    /** {@link android.os.SharedMemory} holding the ring. */
+    /* package */ static final String KEY_RING_MEMORY =
+            "android.support.customtabs.postmessage.RING_MEMORY";
+    /** {@link IPostMessageRing} binder of the writer in the arguments, of the reader in reply. */
+    /* package */ static final String KEY_RING_BINDER =
+            "android.support.customtabs.postmessage.RING_BINDER";
+
+    private final SessionRegistry mSessions = new SessionRegistry();
+    private volatile AdmissionPolicy mAdmissionPolicy;
+    private volatile boolean mAsyncCallbacksEnabled;
+    private final CallbackDispatcher.CutOffListener mCutOffListener = callbackBinder -> {
+        CustomTabsSessionToken sessionToken = mSessions.getByCallback(callbackBinder);
+        if (sessionToken != null) onSessionCallbacksCutOff(sessionToken);
+    };
 
     private ICustomTabsService.Stub mBinder = new ICustomTabsService.Stub() {
 
@@ -117,69 +154,146 @@ public abstract class CustomTabsService extends Service {
         }
 
         private boolean newSessionInternal(ICustomTabsCallback callback, PendingIntent sessionId) {
-            final CustomTabsSessionToken sessionToken =
-                    new CustomTabsSessionToken(callback, sessionId);
+            final CustomTabsSessionToken sessionToken = createSessionToken(callback, sessionId);
+            IBinder binder = callback.asBinder();
+            DeathRecipient deathRecipient = () -> cleanUpSession(sessionToken);
+            // Registered before linking, so that a death right after linking unregisters it.
+            DeathRecipient previous = mSessions.put(sessionToken, deathRecipient);
+            if (previous != null) unlinkToDeath(binder, previous);
             try {
-                DeathRecipient deathRecipient = () -> cleanUpSession(sessionToken);
-                synchronized (mDeathRecipientMap) {
-                    callback.asBinder().linkToDeath(deathRecipient, 0);
-                    mDeathRecipientMap.put(callback.asBinder(), deathRecipient);
-                }
-                return CustomTabsService.this.newSession(sessionToken);
+                binder.linkToDeath(deathRecipient, 0);
             } catch (RemoteException e) {
+                mSessions.remove(binder, deathRecipient);
                 return false;
             }
+            return CustomTabsService.this.newSession(sessionToken);
         }
 
         @Override
         public boolean mayLaunchUrl(ICustomTabsCallback callback, Uri url,
                                     Bundle extras, List<Bundle> otherLikelyBundles) {
+            CustomTabsSessionToken sessionToken =
+                    getSessionToken(callback, getSessionIdFromBundle(extras));
+            if (!admit(sessionToken, AdmissionPolicy.REQUEST_MAY_LAUNCH_URL)) return false;
             return CustomTabsService.this.mayLaunchUrl(
-                    new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
-                    url, extras, otherLikelyBundles);
+                    sessionToken, url, extras, otherLikelyBundles);
         }
 
         @Override
         public Bundle extraCommand(String commandName, Bundle args) {
+            if (COMMAND_POST_MESSAGE_BATCH.equals(commandName) && args != null) {
+                return postMessageBatch(args);
+            }
+            if (COMMAND_OPEN_POST_MESSAGE_RING.equals(commandName) && args != null) {
+                return openPostMessageRing(args);
+            }
             return CustomTabsService.this.extraCommand(commandName, args);
         }
 
+        private @Nullable Bundle postMessageBatch(Bundle args) {
+            CustomTabsSessionToken sessionToken = getSessionTokenFromArgs(args);
+            ArrayList<String> messages = args.getStringArrayList(KEY_POST_MESSAGE_MESSAGES);
+            if (sessionToken == null || messages == null) return null;
+
+            int[] results = new int[messages.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = admit(sessionToken, AdmissionPolicy.REQUEST_POST_MESSAGE)
+                        ? CustomTabsService.this.postMessage(
+                                sessionToken, messages.get(i), new Bundle())
+                        : RESULT_FAILURE_DISALLOWED;
+            }
+            Bundle reply = new Bundle();
+            reply.putIntArray(KEY_POST_MESSAGE_RESULTS, results);
+            return reply;
+        }
+
+        private @Nullable Bundle openPostMessageRing(Bundle args) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) return null;
+            CustomTabsSessionToken sessionToken = getSessionTokenFromArgs(args);
+            if (sessionToken == null) return null;
+            return PostMessageRingReader.open(CustomTabsService.this, sessionToken, args);
+        }
+
+        private @Nullable CustomTabsSessionToken getSessionTokenFromArgs(Bundle args) {
+            IBinder callbackBinder = BundleCompat.getBinder(args, KEY_SESSION_CALLBACK);
+            if (callbackBinder == null) return null;
+            return getSessionToken(ICustomTabsCallback.Stub.asInterface(callbackBinder),
+                    getSessionIdFromBundle(args));
+        }
+
         @Override
         public boolean updateVisuals(ICustomTabsCallback callback, Bundle bundle) {
             return CustomTabsService.this.updateVisuals(
-                    new CustomTabsSessionToken(callback, getSessionIdFromBundle(bundle)), bundle);
+                    getSessionToken(callback, getSessionIdFromBundle(bundle)), bundle);
         }
 
         @Override
         public boolean requestPostMessageChannel(ICustomTabsCallback callback,
                                                  Uri postMessageOrigin) {
             return CustomTabsService.this.requestPostMessageChannel(
-                    new CustomTabsSessionToken(callback, null), postMessageOrigin);
+                    getSessionToken(callback, null), postMessageOrigin);
         }
 
         @Override
         public boolean requestPostMessageChannelWithExtras(ICustomTabsCallback callback,
                                                  Uri postMessageOrigin, Bundle extras) {
+            PostMessageStreams.onPeerExtras(callback.asBinder(), extras);
             return CustomTabsService.this.requestPostMessageChannel(
-                    new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
+                    getSessionToken(callback, getSessionIdFromBundle(extras)),
                     postMessageOrigin);
         }
 
         @Override
         public int postMessage(ICustomTabsCallback callback, String message, Bundle extras) {
-            return CustomTabsService.this.postMessage(
-                    new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
-                    message, extras);
+            CustomTabsSessionToken sessionToken =
+                    getSessionToken(callback, getSessionIdFromBundle(extras));
+            if (!admit(sessionToken, AdmissionPolicy.REQUEST_POST_MESSAGE)) {
+                // Close a stream unread, so that the client fails to write it rather than wait.
+                PostMessageStreams.discardStream(extras);
+                return RESULT_FAILURE_DISALLOWED;
+            }
+            if (PostMessageStreams.hasStream(extras)) {
+                message = PostMessageStreams.readStream(extras);
+                if (message == null) return RESULT_FAILURE_MESSAGING_ERROR;
+            }
+            return CustomTabsService.this.postMessage(sessionToken, message, extras);
         }
 
         @Override
         public boolean validateRelationship(
                 ICustomTabsCallback callback, @Relation int relation, Uri origin, Bundle extras) {
             return CustomTabsService.this.validateRelationship(
-                    new CustomTabsSessionToken(callback, getSessionIdFromBundle(extras)),
+                    getSessionToken(callback, getSessionIdFromBundle(extras)),
                     relation, origin, extras);
         }
 
+        /**
+         * Returns the token the session was created with if it is live, so that calls from known
+         * sessions do not allocate a token. Otherwise, returns a new token.
+         */
+        private CustomTabsSessionToken getSessionToken(
+                @Nullable ICustomTabsCallback callback, @Nullable PendingIntent sessionId) {
+            if (callback != null) {
+                CustomTabsSessionToken session = mSessions.getByCallback(callback.asBinder());
+                if (session != null && (sessionId == null
+                        ? session.getId() == null : sessionId.equals(session.getId()))) {
+                    return session;
+                }
+            }
+            return createSessionToken(callback, sessionId);
+        }
+
+        private CustomTabsSessionToken createSessionToken(
+                @Nullable ICustomTabsCallback callback, @Nullable PendingIntent sessionId) {
+            if (!mAsyncCallbacksEnabled || callback == null
+                    || callback.asBinder() instanceof Binder) {
+                return new CustomTabsSessionToken(callback, sessionId);
+            }
+            // Calls to another process are sent from a background thread, see CallbackDispatcher.
+            return new CustomTabsSessionToken(callback, sessionId,
+                    CallbackDispatcher.forCallback(callback, mCutOffListener));
+        }
+
         private @Nullable PendingIntent getSessionIdFromBundle(@Nullable Bundle bundle) {
             if (bundle == null) return null;
 
@@ -204,20 +318,97 @@ public abstract class CustomTabsService extends Service {
      * same binder will return false.
      */
     protected boolean cleanUpSession(CustomTabsSessionToken sessionToken) {
+        IBinder binder = sessionToken.getCallbackBinder();
+        DeathRecipient deathRecipient = mSessions.remove(binder);
+        return deathRecipient != null && unlinkToDeath(binder, deathRecipient);
+    }
+
+    /**
+     * Sets the policy deciding whether client requests are passed on to this service. By default,
+     * all requests are.
+     *
+     * @param admissionPolicy The policy, or null to admit all requests.
+     */
+    protected void setAdmissionPolicy(@Nullable AdmissionPolicy admissionPolicy) {
+        mAdmissionPolicy = admissionPolicy;
+    }
+
+    /**
+     * Sets whether the callbacks of the sessions created from now on are sent to their client
+     * from a background thread, when it lives in another process, so that a slow or frozen client
+     * does not block the thread firing them. By default, they are sent directly from that thread.
+     * <p>
+     * A client that does not keep up with its callbacks is then cut off, and
+     * {@link #onSessionCallbacksCutOff} is called.
+     *
+     * @param enabled Whether callbacks are sent asynchronously.
+     */
+    protected void setAsyncCallbacksEnabled(boolean enabled) {
+        mAsyncCallbacksEnabled = enabled;
+    }
+
+    /**
+     * Called when a session is no longer sent its callbacks, because its client froze, died, or
+     * did not keep up with them. Only with {@link #setAsyncCallbacksEnabled}, and on any thread.
+     *
+     * @param sessionToken The session whose callbacks are dropped from now on.
+     */
+    protected void onSessionCallbacksCutOff(CustomTabsSessionToken sessionToken) {}
+
+    /**
+     * @return Whether the current request, made from a binder thread, should be passed on.
+     */
+    /* package */ boolean admit(CustomTabsSessionToken sessionToken,
+            @AdmissionPolicy.Request int request) {
+        AdmissionPolicy admissionPolicy = mAdmissionPolicy;
+        return admissionPolicy == null
+                || admissionPolicy.admit(sessionToken, Binder.getCallingUid(), request);
+    }
+
+    private static boolean unlinkToDeath(IBinder binder, DeathRecipient deathRecipient) {
         try {
-            synchronized (mDeathRecipientMap) {
-                IBinder binder = sessionToken.getCallbackBinder();
-                DeathRecipient deathRecipient =
-                        mDeathRecipientMap.get(binder);
-                binder.unlinkToDeath(deathRecipient, 0);
-                mDeathRecipientMap.remove(binder);
-            }
+            binder.unlinkToDeath(deathRecipient, 0);
         } catch (NoSuchElementException e) {
             return false;
         }
         return true;
     }
 
+    /**
+     * @return The number of sessions created through {@link #newSession} whose client is still
+     *         alive and that have not been cleaned up.
+     */
+    protected int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Returns the live sessions. The collection reflects sessions created and cleaned up
+     * concurrently, and iterating over it does not block them. This is safe to call from any
+     * thread.
+     *
+     * @return An unmodifiable view of the sessions counted by {@link #getSessionCount()}.
+     */
+    protected Collection<CustomTabsSessionToken> getSessions() {
+        return mSessions.getSessions();
+    }
+
+    /**
+     * Finds the live session a token refers to, for instance a token obtained from an
+     * {@link Intent} with {@link CustomTabsSessionToken#getSessionTokenFromIntent(Intent)}.
+     *
+     * @param sessionToken A token of the session.
+     * @return The token the session was created with, or null if it is not live.
+     */
+    protected @Nullable CustomTabsSessionToken findSession(CustomTabsSessionToken sessionToken) {
+        CustomTabsSessionToken session = null;
+        if (sessionToken.hasId()) session = mSessions.getById(sessionToken.getId());
+        if (session == null && sessionToken.hasCallback()) {
+            session = mSessions.getByCallback(sessionToken.getCallbackBinder());
+        }
+        return session;
+    }
+
     /**
      * Warms up the browser process asynchronously.
      *
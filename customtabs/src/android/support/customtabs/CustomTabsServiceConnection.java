@@ -41,8 +41,10 @@ public abstract class CustomTabsServiceConnection implements ServiceConnection {
 
     @Override
     public final void onServiceConnected(ComponentName name, IBinder service) {
+        ICustomTabsService customTabsService = ServiceCallMetrics.instrument(
+                ICustomTabsService.Stub.asInterface(service));
         onCustomTabsServiceConnected(name, new CustomTabsClient(
-                ICustomTabsService.Stub.asInterface(service), name, mApplicationContext) {
+                customTabsService, name, mApplicationContext) {
         });
     }
 
@@ -22,15 +22,20 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.customtabs.CustomTabsService.Relation;
 import android.support.customtabs.CustomTabsService.Result;
+import android.support.v4.app.BundleCompat;
 import android.view.View;
 import android.widget.RemoteViews;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -105,7 +110,8 @@ public final class CustomTabsSession {
 
     /**
      * This sets the action button on the toolbar with ID
-     * {@link CustomTabsIntent#TOOLBAR_ACTION_BUTTON_ID}.
+     * {@link CustomTabsIntent#TOOLBAR_ACTION_BUTTON_ID}. The icon is downsampled to the toolbar
+     * size.
      *
      * @param icon          The new icon of the action button.
      * @param description   Content description of the action button.
@@ -114,7 +120,7 @@ public final class CustomTabsSession {
      */
     public boolean setActionButton(@NonNull Bitmap icon, @NonNull String description) {
         Bundle bundle = new Bundle();
-        bundle.putParcelable(CustomTabsIntent.KEY_ICON, icon);
+        bundle.putParcelable(CustomTabsIntent.KEY_ICON, ToolbarIcons.prepare(icon));
         bundle.putString(CustomTabsIntent.KEY_DESCRIPTION, description);
 
         Bundle metaBundle = new Bundle();
@@ -142,12 +148,7 @@ public final class CustomTabsSession {
         bundle.putParcelable(CustomTabsIntent.EXTRA_REMOTEVIEWS, remoteViews);
         bundle.putIntArray(CustomTabsIntent.EXTRA_REMOTEVIEWS_VIEW_IDS, clickableIDs);
         bundle.putParcelable(CustomTabsIntent.EXTRA_REMOTEVIEWS_PENDINGINTENT, pendingIntent);
-        addIdToBundle(bundle);
-        try {
-            return mService.updateVisuals(mCallback, bundle);
-        } catch (RemoteException e) {
-            return false;
-        }
+        return updateVisuals(bundle);
     }
 
     /**
@@ -164,7 +165,7 @@ public final class CustomTabsSession {
     public boolean setToolbarItem(int id, @NonNull Bitmap icon, @NonNull String description) {
         Bundle bundle = new Bundle();
         bundle.putInt(CustomTabsIntent.KEY_ID, id);
-        bundle.putParcelable(CustomTabsIntent.KEY_ICON, icon);
+        bundle.putParcelable(CustomTabsIntent.KEY_ICON, ToolbarIcons.prepare(icon));
         bundle.putString(CustomTabsIntent.KEY_DESCRIPTION, description);
 
         Bundle metaBundle = new Bundle();
@@ -187,7 +188,7 @@ public final class CustomTabsSession {
      *         asynchronous.
      */
     public boolean requestPostMessageChannel(Uri postMessageOrigin) {
-        Bundle extras = new Bundle();
+        Bundle extras = PostMessageStreams.declareStreamingSupport(new Bundle());
         addIdToBundle(extras);
         try {
             return mService.requestPostMessageChannelWithExtras(
@@ -202,7 +203,8 @@ public final class CustomTabsSession {
      * {@link CustomTabsService#requestPostMessageChannel(
      * CustomTabsSessionToken, Uri)}. Fails when called before
      * {@link PostMessageServiceConnection#notifyMessageChannelReady(Bundle)} is received on
-     * the client side.
+     * the client side. Messages too large for a binder transaction are streamed through a pipe
+     * if the browser supports it.
      *
      * @param message The message that is being sent.
      * @param extras Reserved for future use.
@@ -211,16 +213,65 @@ public final class CustomTabsSession {
      */
     @Result
     public int postMessage(String message, Bundle extras) {
+        ParcelFileDescriptor stream = null;
+        if (PostMessageStreams.shouldStream(mCallback.asBinder(), message)) {
+            if (extras == null) extras = new Bundle();
+            try {
+                stream = PostMessageStreams.startStream(message, extras);
+                message = "";
+            } catch (IOException e) {
+                return CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR;
+            }
+        }
         addIdToBundle(extras);
         synchronized (mLock) {
             try {
                 return mService.postMessage(mCallback, message, extras);
             } catch (RemoteException e) {
                 return CustomTabsService.RESULT_FAILURE_REMOTE_ERROR;
+            } finally {
+                PostMessageStreams.closeQuietly(stream);
             }
         }
     }
 
+    /**
+     * Sends several postMessage requests in a single transaction, if the browser supports it.
+     *
+     * @param messages The messages to send, in order.
+     * @return The result of each message, or null if the browser does not support batches, in
+     *         which case nothing has been sent.
+     */
+    /* package */ @Nullable int[] postMessageBatch(ArrayList<String> messages) {
+        Bundle args = new Bundle();
+        args.putStringArrayList(CustomTabsService.KEY_POST_MESSAGE_MESSAGES, messages);
+        int[] results;
+        try {
+            Bundle reply = sessionCommand(CustomTabsService.COMMAND_POST_MESSAGE_BATCH, args);
+            results = reply == null
+                    ? null : reply.getIntArray(CustomTabsService.KEY_POST_MESSAGE_RESULTS);
+        } catch (RemoteException e) {
+            results = new int[messages.size()];
+            Arrays.fill(results, CustomTabsService.RESULT_FAILURE_REMOTE_ERROR);
+        }
+        if (results != null && results.length != messages.size()) return null;
+        return results;
+    }
+
+    /**
+     * Sends one of the {@link ICustomTabsService#extraCommand} handled by {@link CustomTabsService}
+     * on behalf of this session, identified by its callback binder and id added to the arguments.
+     *
+     * @return The reply, null if the browser does not handle the command.
+     */
+    /* package */ @Nullable Bundle sessionCommand(String commandName, Bundle args)
+            throws RemoteException {
+        BundleCompat.putBinder(args, CustomTabsService.KEY_SESSION_CALLBACK,
+                mCallback.asBinder());
+        addIdToBundle(args);
+        return mService.extraCommand(commandName, args);
+    }
+
     /**
      * Requests to validate a relationship between the application and an origin.
      *
@@ -258,6 +309,18 @@ public final class CustomTabsSession {
         }
     }
 
+    /**
+     * Sends the given visuals as they are, tagged with the session id.
+     */
+    /* package */ boolean updateVisuals(Bundle bundle) {
+        addIdToBundle(bundle);
+        try {
+            return mService.updateVisuals(mCallback, bundle);
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
     private void addIdToBundle(Bundle bundle) {
         if (mId != null) bundle.putParcelable(CustomTabsIntent.EXTRA_SESSION_ID, mId);
     }
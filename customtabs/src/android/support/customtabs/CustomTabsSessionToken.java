@@ -100,10 +100,30 @@ public class CustomTabsSessionToken {
 
     CustomTabsSessionToken(@Nullable ICustomTabsCallback callbackBinder,
                            @Nullable PendingIntent sessionId) {
+        this(callbackBinder, sessionId, null);
+    }
+
+    /**
+     * @param callback The callback the events of the session are fired on, or null to call the
+     *                 client directly from the thread firing them.
+     */
+    CustomTabsSessionToken(@Nullable ICustomTabsCallback callbackBinder,
+                           @Nullable PendingIntent sessionId,
+                           @Nullable CustomTabsCallback callback) {
         mCallbackBinder = callbackBinder;
         mSessionId = sessionId;
 
-        mCallback = callbackBinder == null ? null : new CustomTabsCallback() {
+        if (callbackBinder == null) {
+            mCallback = null;
+        } else if (callback != null) {
+            mCallback = callback;
+        } else {
+            mCallback = createDirectCallback();
+        }
+    }
+
+    private CustomTabsCallback createDirectCallback() {
+        return new CustomTabsCallback() {
             @Override
             public void onNavigationEvent(int navigationEvent, Bundle extras) {
                 try {
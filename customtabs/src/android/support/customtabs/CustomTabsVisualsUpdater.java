@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.app.PendingIntent;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Batches the toolbar updates of a {@link CustomTabsSession}.
+ * <p>
+ * The updates requested within a frame are merged, and sent in a single
+ * {@link ICustomTabsService#updateVisuals} call containing only the parts that differ from what
+ * this updater last sent successfully. Repeatedly setting the same state, for instance at click
+ * rate from a bottom bar, does not send anything after the first time. Icons and
+ * {@link RemoteViews} are compared by content. As the {@link RemoteViews} are replaced as a
+ * whole, a change of any of their views sends all of them.
+ * <p>
+ * The browser does not report the visuals it shows. Call {@link #invalidate()} when they may
+ * have changed without this updater, for instance after launching a Custom Tab with this session,
+ * as the tab then shows the visuals of its {@link CustomTabsIntent}, or after updating them
+ * through the session directly.
+ * <p>
+ * The updates are sent asynchronously, a failed update is not retried, but the next request for
+ * the same state will be sent again.
+ */
+public class CustomTabsVisualsUpdater {
+    /** Default time during which successive updates are merged, about a frame. */
+    public static final long DEFAULT_DEBOUNCE_MS = 16;
+
+    private static class ToolbarItem {
+        final Bitmap mIcon;
+        /** The content hash of the icon, null if it cannot be compared. */
+        @Nullable final Long mIconHash;
+        final String mDescription;
+
+        ToolbarItem(Bitmap icon, String description) {
+            mIcon = icon;
+            mIconHash = ToolbarIcons.hashContent(icon);
+            mDescription = description;
+        }
+    }
+
+    private static class SecondaryToolbar {
+        @Nullable final RemoteViews mRemoteViews;
+        @Nullable final int[] mClickableIds;
+        @Nullable final PendingIntent mPendingIntent;
+
+        SecondaryToolbar(@Nullable RemoteViews remoteViews, @Nullable int[] clickableIds,
+                @Nullable PendingIntent pendingIntent) {
+            mRemoteViews = remoteViews;
+            mClickableIds = clickableIds;
+            mPendingIntent = pendingIntent;
+        }
+    }
+
+    private final CustomTabsSession mSession;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Object mLock = new Object();
+    /** Serializes the flushes, so that the session's sent state follows the call order. */
+    private final Object mFlushLock = new Object();
+    private final SparseArray<ToolbarItem> mPendingItems = new SparseArray<>();
+    @Nullable private SecondaryToolbar mPendingSecondaryToolbar;
+    private boolean mFlushScheduled;
+    private long mDebounceMs = DEFAULT_DEBOUNCE_MS;
+
+    /** The icon hashes last successfully sent for each toolbar item id, guarded by mFlushLock. */
+    private final SparseArray<Long> mSentIconHashes = new SparseArray<>();
+    /** The descriptions last successfully sent for each toolbar item id, guarded by mFlushLock. */
+    private final SparseArray<String> mSentDescriptions = new SparseArray<>();
+    /** Whether the secondary toolbar fields below hold a sent state, guarded by mFlushLock. */
+    private boolean mSecondaryToolbarSent;
+    @Nullable private byte[] mSentRemoteViews;
+    @Nullable private int[] mSentClickableIds;
+    @Nullable private PendingIntent mSentRemoteViewsPendingIntent;
+
+    /**
+     * @param session The session whose toolbar is updated.
+     */
+    public CustomTabsVisualsUpdater(@NonNull CustomTabsSession session) {
+        mSession = session;
+    }
+
+    /**
+     * @return The session whose toolbar is updated.
+     */
+    public @NonNull CustomTabsSession getSession() {
+        return mSession;
+    }
+
+    /**
+     * Sets the time during which successive updates are merged.
+     */
+    public void setDebounce(long debounceMs) {
+        synchronized (mLock) {
+            mDebounceMs = debounceMs;
+        }
+    }
+
+    /**
+     * As {@link CustomTabsSession#setActionButton(Bitmap, String)}, but asynchronous.
+     */
+    public void setActionButton(@NonNull Bitmap icon, @NonNull String description) {
+        setToolbarItem(CustomTabsIntent.TOOLBAR_ACTION_BUTTON_ID, icon, description);
+    }
+
+    /**
+     * As {@link CustomTabsSession#setToolbarItem(int, Bitmap, String)}, but asynchronous.
+     */
+    public void setToolbarItem(int id, @NonNull Bitmap icon, @NonNull String description) {
+        ToolbarItem item = new ToolbarItem(ToolbarIcons.prepare(icon), description);
+        synchronized (mLock) {
+            mPendingItems.put(id, item);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * As {@link CustomTabsSession#setSecondaryToolbarViews(RemoteViews, int[], PendingIntent)},
+     * but asynchronous.
+     */
+    public void setSecondaryToolbarViews(@Nullable RemoteViews remoteViews,
+            @Nullable int[] clickableIDs, @Nullable PendingIntent pendingIntent) {
+        SecondaryToolbar secondaryToolbar = new SecondaryToolbar(remoteViews,
+                clickableIDs == null ? null : clickableIDs.clone(), pendingIntent);
+        synchronized (mLock) {
+            mPendingSecondaryToolbar = secondaryToolbar;
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Forgets what has been sent, so that the next update of each part of the toolbar is sent
+     * even if it is identical to the last one. Pending updates are kept.
+     */
+    public void invalidate() {
+        synchronized (mFlushLock) {
+            mSentIconHashes.clear();
+            mSentDescriptions.clear();
+            mSecondaryToolbarSent = false;
+            mSentRemoteViews = null;
+            mSentClickableIds = null;
+            mSentRemoteViewsPendingIntent = null;
+        }
+    }
+
+    /**
+     * Sends the pending updates now.
+     *
+     * @return Whether the updates were sent successfully, true if there was nothing to send.
+     */
+    public boolean flush() {
+        synchronized (mFlushLock) {
+            SparseArray<ToolbarItem> items;
+            SecondaryToolbar secondaryToolbar;
+            synchronized (mLock) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+                items = mPendingItems.clone();
+                mPendingItems.clear();
+                secondaryToolbar = mPendingSecondaryToolbar;
+                mPendingSecondaryToolbar = null;
+            }
+
+            Bundle bundle = new Bundle();
+            ArrayList<Bundle> toolbarItems = new ArrayList<>();
+            for (int i = 0; i < items.size(); i++) {
+                int id = items.keyAt(i);
+                ToolbarItem item = items.valueAt(i);
+                if (isToolbarItemSent(id, item)) {
+                    items.removeAt(i--);
+                    continue;
+                }
+                Bundle itemBundle = new Bundle();
+                itemBundle.putInt(CustomTabsIntent.KEY_ID, id);
+                itemBundle.putParcelable(CustomTabsIntent.KEY_ICON, item.mIcon);
+                itemBundle.putString(CustomTabsIntent.KEY_DESCRIPTION, item.mDescription);
+                if (id == CustomTabsIntent.TOOLBAR_ACTION_BUTTON_ID) {
+                    bundle.putBundle(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE, itemBundle);
+                } else {
+                    toolbarItems.add(itemBundle);
+                }
+            }
+            if (!toolbarItems.isEmpty()) {
+                bundle.putParcelableArrayList(CustomTabsIntent.EXTRA_TOOLBAR_ITEMS, toolbarItems);
+            }
+
+            byte[] marshalledViews = null;
+            if (secondaryToolbar != null) {
+                marshalledViews = marshall(secondaryToolbar.mRemoteViews);
+                if (isSecondaryToolbarSent(marshalledViews, secondaryToolbar)) {
+                    secondaryToolbar = null;
+                } else {
+                    bundle.putParcelable(CustomTabsIntent.EXTRA_REMOTEVIEWS,
+                            secondaryToolbar.mRemoteViews);
+                    bundle.putIntArray(CustomTabsIntent.EXTRA_REMOTEVIEWS_VIEW_IDS,
+                            secondaryToolbar.mClickableIds);
+                    bundle.putParcelable(CustomTabsIntent.EXTRA_REMOTEVIEWS_PENDINGINTENT,
+                            secondaryToolbar.mPendingIntent);
+                }
+            }
+
+            if (items.size() == 0 && secondaryToolbar == null) return true;
+            if (!mSession.updateVisuals(bundle)) return false;
+
+            for (int i = 0; i < items.size(); i++) {
+                ToolbarItem item = items.valueAt(i);
+                mSentIconHashes.put(items.keyAt(i), item.mIconHash);
+                mSentDescriptions.put(items.keyAt(i), item.mDescription);
+            }
+            if (secondaryToolbar != null) {
+                mSecondaryToolbarSent = true;
+                mSentRemoteViews = marshalledViews;
+                mSentClickableIds = secondaryToolbar.mClickableIds;
+                mSentRemoteViewsPendingIntent = secondaryToolbar.mPendingIntent;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether the given item is the last one successfully sent with the given id, in
+     *         which case sending it again is a no-op for the browser.
+     */
+    private boolean isToolbarItemSent(int id, ToolbarItem item) {
+        return item.mIconHash != null && item.mIconHash.equals(mSentIconHashes.get(id))
+                && item.mDescription.equals(mSentDescriptions.get(id));
+    }
+
+    /**
+     * @param marshalledViews The {@link RemoteViews} of the given toolbar, as returned by
+     *                        {@link #marshall}.
+     * @return Whether the given secondary toolbar is the last one successfully sent.
+     */
+    private boolean isSecondaryToolbarSent(@Nullable byte[] marshalledViews,
+            SecondaryToolbar secondaryToolbar) {
+        // Views that could not be marshalled cannot be compared, and are always sent.
+        return mSecondaryToolbarSent && marshalledViews != null
+                && Arrays.equals(mSentRemoteViews, marshalledViews)
+                && Arrays.equals(mSentClickableIds, secondaryToolbar.mClickableIds)
+                && (mSentRemoteViewsPendingIntent == null
+                        ? secondaryToolbar.mPendingIntent == null
+                        : mSentRemoteViewsPendingIntent.equals(secondaryToolbar.mPendingIntent));
+    }
+
+    /**
+     * @return The content of the given {@link RemoteViews}, an empty array for null views, or
+     *         null if they hold binder objects and cannot be compared.
+     */
+    private static @Nullable byte[] marshall(@Nullable RemoteViews remoteViews) {
+        if (remoteViews == null) return new byte[0];
+        Parcel parcel = Parcel.obtain();
+        try {
+            remoteViews.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (mFlushScheduled) return;
+        mFlushScheduled = true;
+        mHandler.postDelayed(mFlushRunnable, mDebounceMs);
+    }
+}
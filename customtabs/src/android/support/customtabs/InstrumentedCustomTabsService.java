@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static android.support.customtabs.ServiceCallMetrics.METHOD_EXTRA_COMMAND;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_MAY_LAUNCH_URL;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_NEW_SESSION;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_POST_MESSAGE;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_REQUEST_POST_MESSAGE_CHANNEL;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_UPDATE_VISUALS;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_VALIDATE_RELATIONSHIP;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_WARMUP;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * {@link ICustomTabsService} forwarding all the calls to another one and reporting them to
+ * {@link ServiceCallMetrics}.
+ */
+/* package */ class InstrumentedCustomTabsService implements ICustomTabsService {
+    private final ICustomTabsService mService;
+
+    InstrumentedCustomTabsService(ICustomTabsService service) {
+        mService = service;
+    }
+
+    @Override
+    public IBinder asBinder() {
+        return mService.asBinder();
+    }
+
+    @Override
+    public boolean warmup(long flags) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) request.writeLong(flags);
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_WARMUP, startNs, request, mService.warmup(flags));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_WARMUP, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean newSession(ICustomTabsCallback callback) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) request.writeStrongInterface(callback);
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_NEW_SESSION, startNs, request,
+                    mService.newSession(callback));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_NEW_SESSION, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean newSessionWithExtras(ICustomTabsCallback callback, Bundle extras)
+            throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeBundle(extras);
+        }
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_NEW_SESSION, startNs, request,
+                    mService.newSessionWithExtras(callback, extras));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_NEW_SESSION, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean mayLaunchUrl(ICustomTabsCallback callback, Uri url, Bundle extras,
+            List<Bundle> otherLikelyBundles) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeParcelable(url, 0);
+            request.writeBundle(extras);
+            request.writeTypedList(otherLikelyBundles);
+        }
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_MAY_LAUNCH_URL, startNs, request,
+                    mService.mayLaunchUrl(callback, url, extras, otherLikelyBundles));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_MAY_LAUNCH_URL, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public Bundle extraCommand(String commandName, Bundle args) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeString(commandName);
+            request.writeBundle(args);
+        }
+        long startNs = System.nanoTime();
+        try {
+            Bundle result = mService.extraCommand(commandName, args);
+            ServiceCallMetrics.report(METHOD_EXTRA_COMMAND, startNs,
+                    CustomTabsService.RESULT_SUCCESS, request);
+            return result;
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_EXTRA_COMMAND, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean updateVisuals(ICustomTabsCallback callback, Bundle bundle)
+            throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeBundle(bundle);
+        }
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_UPDATE_VISUALS, startNs, request,
+                    mService.updateVisuals(callback, bundle));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_UPDATE_VISUALS, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean requestPostMessageChannel(ICustomTabsCallback callback,
+            Uri postMessageOrigin) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeParcelable(postMessageOrigin, 0);
+        }
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_REQUEST_POST_MESSAGE_CHANNEL, startNs, request,
+                    mService.requestPostMessageChannel(callback, postMessageOrigin));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_REQUEST_POST_MESSAGE_CHANNEL, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean requestPostMessageChannelWithExtras(ICustomTabsCallback callback,
+            Uri postMessageOrigin, Bundle extras) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeParcelable(postMessageOrigin, 0);
+            request.writeBundle(extras);
+        }
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_REQUEST_POST_MESSAGE_CHANNEL, startNs, request,
+                    mService.requestPostMessageChannelWithExtras(
+                            callback, postMessageOrigin, extras));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_REQUEST_POST_MESSAGE_CHANNEL, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public int postMessage(ICustomTabsCallback callback, String message, Bundle extras)
+            throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeString(message);
+            request.writeBundle(extras);
+        }
+        long startNs = System.nanoTime();
+        try {
+            int result = mService.postMessage(callback, message, extras);
+            ServiceCallMetrics.report(METHOD_POST_MESSAGE, startNs, result, request);
+            return result;
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_POST_MESSAGE, startNs, request);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean validateRelationship(ICustomTabsCallback callback, int relation, Uri origin,
+            Bundle extras) throws RemoteException {
+        Parcel request = obtainRequest();
+        if (request != null) {
+            request.writeStrongInterface(callback);
+            request.writeInt(relation);
+            request.writeParcelable(origin, 0);
+            request.writeBundle(extras);
+        }
+        long startNs = System.nanoTime();
+        try {
+            return reportBoolean(METHOD_VALIDATE_RELATIONSHIP, startNs, request,
+                    mService.validateRelationship(callback, relation, origin, extras));
+        } catch (RemoteException | RuntimeException e) {
+            reportFailure(METHOD_VALIDATE_RELATIONSHIP, startNs, request);
+            throw e;
+        }
+    }
+
+    /**
+     * @return A {@link Parcel} to marshal the arguments into if request sizes are measured, null
+     *         otherwise.
+     */
+    private static @Nullable Parcel obtainRequest() {
+        return ServiceCallMetrics.isMeasuringRequestSize() ? Parcel.obtain() : null;
+    }
+
+    private static boolean reportBoolean(String method, long startNs, @Nullable Parcel request,
+            boolean result) {
+        ServiceCallMetrics.report(method, startNs, result
+                ? CustomTabsService.RESULT_SUCCESS
+                : ServiceCallMetrics.RESULT_RETURNED_FALSE, request);
+        return result;
+    }
+
+    private static void reportFailure(String method, long startNs, @Nullable Parcel request) {
+        ServiceCallMetrics.report(
+                method, startNs, CustomTabsService.RESULT_FAILURE_REMOTE_ERROR, request);
+    }
+}
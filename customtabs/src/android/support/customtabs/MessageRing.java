@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A ring of length-prefixed messages in a {@link ByteBuffer}, written by a single producer and
+ * read by a single consumer.
+ * <p>
+ * The ring does not store its positions: the head (bytes read so far) and the tail (bytes written
+ * so far) are owned by the consumer and the producer respectively, and exchanged by the caller,
+ * so that the buffer can be shared across processes without relying on memory ordering of the
+ * buffer itself. This class only depends on java.nio so that it can be tested on a JVM.
+ */
+/* package */ final class MessageRing {
+    /** Size of the length prefix of each record. */
+    static final int HEADER_SIZE = 4;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    /**
+     * @param buffer The memory of the ring. Its content between position 0 and its capacity is
+     *               used, regardless of its position and limit.
+     */
+    MessageRing(ByteBuffer buffer) {
+        mBuffer = buffer.duplicate();
+        mBuffer.clear();
+        mCapacity = mBuffer.capacity();
+    }
+
+    /**
+     * @return The size of the ring in bytes.
+     */
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Appends a message to the ring.
+     *
+     * @param head    The position up to which the consumer has read.
+     * @param tail    The position up to which the producer has written.
+     * @param payload The message.
+     * @return The new tail, or -1 if the ring does not have room for the message.
+     */
+    long write(long head, long tail, byte[] payload) {
+        long recordSize = HEADER_SIZE + (long) payload.length;
+        if (recordSize > mCapacity - (tail - head)) return -1;
+
+        byte[] header = new byte[] {
+                (byte) (payload.length >>> 24), (byte) (payload.length >>> 16),
+                (byte) (payload.length >>> 8), (byte) payload.length};
+        put(tail, header);
+        put(tail + HEADER_SIZE, payload);
+        return tail + recordSize;
+    }
+
+    /**
+     * Reads all the messages between the given positions.
+     *
+     * @param head     The position up to which the consumer has read.
+     * @param tail     The position up to which the producer has written.
+     * @param messages Receives the messages.
+     * @return The new head, equal to the tail.
+     * @throws IllegalStateException If the positions or the content of the ring are inconsistent,
+     *                               which can only happen with a misbehaving producer.
+     */
+    long read(long head, long tail, List<byte[]> messages) {
+        if (tail < head || tail - head > mCapacity) {
+            throw new IllegalStateException("Invalid ring positions " + head + ", " + tail);
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        while (head < tail) {
+            if (tail - head < HEADER_SIZE) throw new IllegalStateException("Truncated header");
+            get(head, header);
+            int length = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16)
+                    | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+            head += HEADER_SIZE;
+            if (length < 0 || length > tail - head) {
+                throw new IllegalStateException("Invalid record length " + length);
+            }
+            byte[] payload = new byte[length];
+            get(head, payload);
+            head += length;
+            messages.add(payload);
+        }
+        return head;
+    }
+
+    private void put(long position, byte[] source) {
+        int offset = (int) (position % mCapacity);
+        int firstPart = Math.min(source.length, mCapacity - offset);
+        mBuffer.position(offset);
+        mBuffer.put(source, 0, firstPart);
+        if (firstPart < source.length) {
+            mBuffer.position(0);
+            mBuffer.put(source, firstPart, source.length - firstPart);
+        }
+    }
+
+    private void get(long position, byte[] destination) {
+        int offset = (int) (position % mCapacity);
+        int firstPart = Math.min(destination.length, mCapacity - offset);
+        mBuffer.position(offset);
+        mBuffer.get(destination, 0, firstPart);
+        if (firstPart < destination.length) {
+            mBuffer.position(0);
+            mBuffer.get(destination, firstPart, destination.length - firstPart);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.customtabs.CustomTabsService.Result;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the postMessage requests of a {@link CustomTabsSession} from a dedicated thread, so that
+ * callers never wait for the IPC. The thread is started when a message is queued, and stops once
+ * no message has been queued for {@link #IDLE_TIMEOUT_MS}, so that an idle queue holds neither a
+ * thread nor its session. Interrupting the thread closes the queue.
+ * <p>
+ * Messages are sent in the order they were queued. When several messages are waiting, they are
+ * sent in a single transaction if the browser supports it, and one by one otherwise. Messages too
+ * large to share a transaction, including those streamed to the browser, are sent alone. The
+ * queue is bounded: {@link #offer} rejects messages when it is full, and {@link #put} waits for
+ * room.
+ * <p>
+ * The result of each message is reported to its {@link ResultCallback} on the sending thread.
+ */
+public class PostMessageQueue {
+    private static final String TAG = "PostMessageQueue";
+
+    /** Default maximum number of queued messages. */
+    public static final int DEFAULT_CAPACITY = 64;
+    /** Time after which the thread of a queue without messages stops. */
+    public static final long IDLE_TIMEOUT_MS = 10000;
+    /** Maximum number of messages sent in a single transaction. */
+    private static final int MAX_BATCH_SIZE = 16;
+    /**
+     * Maximum total length of the messages sent in a single transaction, well below the limit of
+     * binder transactions, as each character takes two bytes.
+     */
+    @VisibleForTesting
+    static final int MAX_BATCH_CHARS = 64 * 1024;
+
+    /**
+     * Receives the result of a queued message.
+     */
+    public interface ResultCallback {
+        /**
+         * @param message The message.
+         * @param result  The result of the postMessage request. Messages still queued when the
+         *                queue is closed get
+         *                {@link CustomTabsService#RESULT_FAILURE_MESSAGING_ERROR}.
+         */
+        void onPostMessageResult(@NonNull String message, @Result int result);
+    }
+
+    private static class Entry {
+        final String mMessage;
+        @Nullable final ResultCallback mCallback;
+
+        Entry(String message, @Nullable ResultCallback callback) {
+            mMessage = message;
+            mCallback = callback;
+        }
+    }
+
+    /** Queued to wake up the sending thread when the queue is closed. */
+    private static final Entry CLOSE = new Entry("", null);
+
+    private final CustomTabsSession mSession;
+    /** Also the lock making enqueuing atomic with closing. */
+    private final BlockingQueue<Entry> mQueue;
+    private final long mIdleTimeoutMs;
+    /** Only set while holding the lock of mQueue. */
+    private volatile boolean mClosed;
+    /** Whether the thread is running, guarded by mQueue. If not, mQueue is empty. */
+    private boolean mThreadRunning;
+    /** Whether the browser supports batches, null until known. Only used on the thread. */
+    @Nullable private volatile Boolean mBatchingSupported;
+
+    /**
+     * Creates a queue with a capacity of {@link #DEFAULT_CAPACITY}.
+     *
+     * @param session The session to send the messages with.
+     */
+    public PostMessageQueue(@NonNull CustomTabsSession session) {
+        this(session, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param session  The session to send the messages with.
+     * @param capacity The maximum number of queued messages.
+     */
+    public PostMessageQueue(@NonNull CustomTabsSession session, int capacity) {
+        this(session, capacity, IDLE_TIMEOUT_MS);
+    }
+
+    @VisibleForTesting
+    /* package */ PostMessageQueue(@NonNull CustomTabsSession session, int capacity,
+            long idleTimeoutMs) {
+        mSession = session;
+        // One more slot for CLOSE, which must never block.
+        mQueue = new ArrayBlockingQueue<>(capacity + 1);
+        mIdleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Queues a message if there is room for it, without blocking.
+     *
+     * @param message  The message.
+     * @param callback Receives the result of the message. Can be null.
+     * @return Whether the message has been queued, false if the queue is full or closed.
+     */
+    public boolean offer(@NonNull String message, @Nullable ResultCallback callback) {
+        synchronized (mQueue) {
+            if (mClosed) return false;
+            // Keep the last slot for CLOSE.
+            if (mQueue.remainingCapacity() <= 1) return false;
+            enqueueLocked(new Entry(message, callback));
+            return true;
+        }
+    }
+
+    /**
+     * Queues a message, waiting for room if the queue is full.
+     *
+     * @param message  The message.
+     * @param callback Receives the result of the message. Can be null.
+     * @return Whether the message has been queued, false if the queue is closed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean put(@NonNull String message, @Nullable ResultCallback callback)
+            throws InterruptedException {
+        synchronized (mQueue) {
+            while (!mClosed) {
+                if (mQueue.remainingCapacity() > 1) {
+                    enqueueLocked(new Entry(message, callback));
+                    return true;
+                }
+                mQueue.wait();
+            }
+        }
+        return false;
+    }
+
+    private void enqueueLocked(Entry entry) {
+        mQueue.add(entry);
+        if (mThreadRunning) return;
+        mThreadRunning = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * @return Whether the sending thread is running.
+     */
+    @VisibleForTesting
+    /* package */ boolean isThreadRunning() {
+        synchronized (mQueue) {
+            return mThreadRunning;
+        }
+    }
+
+    /**
+     * @return The number of messages waiting to be sent.
+     */
+    public int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Stops the sending thread once the message being sent, if any, has been sent. The messages
+     * still queued are failed.
+     */
+    public void close() {
+        synchronized (mQueue) {
+            if (mClosed) return;
+            mClosed = true;
+            // Without a thread, there is no message to fail.
+            if (mThreadRunning) mQueue.offer(CLOSE);
+            mQueue.notifyAll();
+        }
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            Entry entry;
+            try {
+                entry = mQueue.poll(mIdleTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Fails the messages still queued, and stops once CLOSE is taken.
+                close();
+                continue;
+            }
+            if (entry == null) {
+                synchronized (mQueue) {
+                    // Otherwise, a message has just been queued.
+                    if (mQueue.isEmpty()) {
+                        mThreadRunning = false;
+                        return;
+                    }
+                }
+                continue;
+            }
+            batch.add(entry);
+            mQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            synchronized (mQueue) {
+                mQueue.notifyAll();
+            }
+
+            if (mClosed) {
+                // Nothing can be queued once closed, so this gets all the remaining messages.
+                synchronized (mQueue) {
+                    mQueue.drainTo(batch);
+                }
+                while (batch.remove(CLOSE)) {}
+                fail(batch);
+                return;
+            }
+            send(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends the given messages in order, in batches bounded in count and total length.
+     */
+    private void send(List<Entry> entries) {
+        int start = 0;
+        while (start < entries.size()) {
+            int end = start;
+            int chars = 0;
+            while (end < entries.size() && end - start < MAX_BATCH_SIZE) {
+                String message = entries.get(end).mMessage;
+                if (isSentAlone(message) || chars + message.length() > MAX_BATCH_CHARS) break;
+                chars += message.length();
+                end++;
+            }
+            // A message that cannot be batched is sent on its own.
+            if (end == start) end++;
+            sendBatch(entries.subList(start, end));
+            start = end;
+        }
+    }
+
+    /**
+     * @return Whether the message must not share a transaction with others.
+     */
+    private boolean isSentAlone(String message) {
+        return message.length() > MAX_BATCH_CHARS
+                || PostMessageStreams.shouldStream(mSession.getBinder(), message);
+    }
+
+    private void sendBatch(List<Entry> batch) {
+        int[] results = null;
+        if (batch.size() > 1 && !Boolean.FALSE.equals(mBatchingSupported)) {
+            ArrayList<String> messages = new ArrayList<>(batch.size());
+            for (Entry entry : batch) messages.add(entry.mMessage);
+            results = mSession.postMessageBatch(messages);
+            mBatchingSupported = results != null;
+        }
+        if (results == null) {
+            results = new int[batch.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = mSession.postMessage(batch.get(i).mMessage, new Bundle());
+            }
+        }
+        for (int i = 0; i < results.length; i++) report(batch.get(i), results[i]);
+    }
+
+    private void fail(List<Entry> entries) {
+        for (Entry entry : entries) {
+            report(entry, CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR);
+        }
+    }
+
+    private static void report(Entry entry, @Result int result) {
+        if (entry.mCallback == null) return;
+        try {
+            entry.mCallback.onPostMessageResult(entry.mMessage, result);
+        } catch (RuntimeException e) {
+            // The sending thread must survive a broken callback.
+            Log.w(TAG, "Exception in ResultCallback.", e);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.v4.app.BundleCompat;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+
+/**
+ * A shared memory channel for sending frequent postMessage requests of a session to the browser.
+ * <p>
+ * Messages are written to a ring buffer shared with the browser, which is only notified of new
+ * data when it has consumed the previous one, so that a burst of messages costs a single binder
+ * transaction instead of one per message. The browser delivers them in order to
+ * {@link CustomTabsService#postMessage(CustomTabsSessionToken, String, Bundle)}, but the result
+ * of each message is not reported back, and their order relative to messages sent through
+ * {@link CustomTabsSession#postMessage(String, Bundle)} is not defined.
+ * <p>
+ * Rings require API 27 and a browser built against this version of the library, see
+ * {@link #open(CustomTabsSession, int)}. This class is thread safe.
+ */
+public class PostMessageRing {
+    private static final String TAG = "PostMessageRing";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Default size of the ring. */
+    public static final int DEFAULT_CAPACITY_BYTES = 64 * 1024;
+
+    private final MessageRing mRing;
+    private final Runnable mReleaseMemory;
+    private final IPostMessageRing.Stub mWriter = new IPostMessageRing.Stub() {
+        @Override
+        public void onDataAvailable(long tail) {
+            // Only sent to the reader.
+        }
+
+        @Override
+        public void onDataConsumed(long head) {
+            PostMessageRing.this.onDataConsumed(head);
+        }
+
+        @Override
+        public void onClosed(long head) {
+            close();
+        }
+    };
+    private final IBinder.DeathRecipient mDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            close();
+        }
+    };
+    private IPostMessageRing mReader;
+
+    private long mHead;
+    private long mTail;
+    private boolean mDataAvailableSent;
+    private boolean mClosed;
+    private int mMessageCount;
+    private int mRejectedCount;
+    private int mDataAvailableCount;
+
+    /**
+     * Opens a ring of {@link #DEFAULT_CAPACITY_BYTES} for the given session.
+     *
+     * @see #open(CustomTabsSession, int)
+     */
+    public static @Nullable PostMessageRing open(@NonNull CustomTabsSession session) {
+        return open(session, DEFAULT_CAPACITY_BYTES);
+    }
+
+    /**
+     * Opens a ring for the given session. This sends a synchronous request to the browser, and
+     * should not be called on the UI thread.
+     *
+     * @param session       The session the messages are sent on behalf of. It should have
+     *                      requested a postMessage channel.
+     * @param capacityBytes The size of the ring. Each message takes 4 bytes more than its
+     *                      UTF-8 encoding, and a message larger than the ring can never be sent.
+     * @return The ring, or null if shared memory is not available on this version of Android,
+     *         or if the browser does not support rings. The messages should then be sent through
+     *         {@link CustomTabsSession#postMessage(String, Bundle)}.
+     */
+    public static @Nullable PostMessageRing open(@NonNull CustomTabsSession session,
+            int capacityBytes) {
+        if (capacityBytes <= MessageRing.HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacityBytes);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1) return null;
+        return Api27Impl.open(session, capacityBytes);
+    }
+
+    private PostMessageRing(ByteBuffer buffer, Runnable releaseMemory) {
+        mRing = new MessageRing(buffer);
+        mReleaseMemory = releaseMemory;
+    }
+
+    /**
+     * Writes a message to the ring, without blocking.
+     *
+     * @param message The message.
+     * @return Whether the message was written, false if the ring is full or closed. The caller
+     *         may retry later, or send the message through
+     *         {@link CustomTabsSession#postMessage(String, Bundle)}.
+     */
+    public boolean postMessage(@NonNull String message) {
+        byte[] payload = message.getBytes(UTF_8);
+        long tail;
+        synchronized (this) {
+            if (mClosed) return false;
+            tail = mRing.write(mHead, mTail, payload);
+            if (tail < 0) {
+                mRejectedCount++;
+                return false;
+            }
+            mTail = tail;
+            mMessageCount++;
+            // The browser is told about this data once it is done with the previous one.
+            if (mDataAvailableSent) return true;
+            mDataAvailableSent = true;
+            mDataAvailableCount++;
+        }
+        notifyDataAvailable(tail);
+        return true;
+    }
+
+    /**
+     * Closes the ring. The browser still receives the messages written so far.
+     */
+    public void close() {
+        long tail;
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            tail = mTail;
+        }
+        mReleaseMemory.run();
+        if (mReader == null) return;
+        try {
+            mReader.asBinder().unlinkToDeath(mDeathRecipient, 0);
+        } catch (NoSuchElementException e) {
+            // Closed before being linked.
+        }
+        try {
+            mReader.onClosed(tail);
+        } catch (RemoteException e) {
+            // The reader is gone as well.
+        }
+    }
+
+    /**
+     * @return Whether the ring is closed, either explicitly or because the browser went away.
+     */
+    public synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @return The number of messages written to the ring.
+     */
+    public synchronized int getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * @return The number of messages rejected because the ring was full.
+     */
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * @return The number of binder transactions sent to notify the browser of new messages.
+     */
+    public synchronized int getNotificationCount() {
+        return mDataAvailableCount;
+    }
+
+    private void onDataConsumed(long head) {
+        long tail;
+        synchronized (this) {
+            if (mClosed) return;
+            if (head < mHead || head > mTail) {
+                Log.w(TAG, "Invalid ring position " + head + ", closing it.");
+                tail = -1;
+            } else {
+                mHead = head;
+                tail = mTail;
+                if (tail == head) {
+                    mDataAvailableSent = false;
+                    return;
+                }
+                mDataAvailableCount++;
+            }
+        }
+        if (tail < 0) {
+            close();
+        } else {
+            notifyDataAvailable(tail);
+        }
+    }
+
+    private void notifyDataAvailable(long tail) {
+        // The binder transaction orders the writes to the shared memory before the reads.
+        try {
+            mReader.onDataAvailable(tail);
+        } catch (RemoteException e) {
+            close();
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O_MR1)
+    private static class Api27Impl {
+        static @Nullable PostMessageRing open(CustomTabsSession session, int capacityBytes) {
+            final SharedMemory memory;
+            final ByteBuffer buffer;
+            try {
+                memory = SharedMemory.create(TAG, capacityBytes);
+                buffer = memory.mapReadWrite();
+                // Only restricts the future mappings, that is those of the browser.
+                memory.setProtect(OsConstants.PROT_READ);
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Could not create postMessage ring.", e);
+                return null;
+            }
+            PostMessageRing ring = new PostMessageRing(buffer, new Runnable() {
+                @Override
+                public void run() {
+                    SharedMemory.unmap(buffer);
+                    memory.close();
+                }
+            });
+
+            Bundle args = new Bundle();
+            args.putParcelable(CustomTabsService.KEY_RING_MEMORY, memory);
+            BundleCompat.putBinder(args, CustomTabsService.KEY_RING_BINDER, ring.mWriter);
+            try {
+                Bundle reply = session.sessionCommand(
+                        CustomTabsService.COMMAND_OPEN_POST_MESSAGE_RING, args);
+                IBinder readerBinder = reply == null
+                        ? null : BundleCompat.getBinder(reply, CustomTabsService.KEY_RING_BINDER);
+                if (readerBinder != null) {
+                    ring.mReader = IPostMessageRing.Stub.asInterface(readerBinder);
+                    readerBinder.linkToDeath(ring.mDeathRecipient, 0);
+                    return ring;
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Could not open postMessage ring.", e);
+            }
+            ring.close();
+            return null;
+        }
+    }
+}
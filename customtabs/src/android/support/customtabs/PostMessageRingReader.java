@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.v4.app.BundleCompat;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Browser side end of a {@link PostMessageRing}: reads the messages written by the client into
+ * the shared memory when notified, and delivers them to
+ * {@link CustomTabsService#postMessage(CustomTabsSessionToken, String, Bundle)}.
+ */
+@RequiresApi(Build.VERSION_CODES.O_MR1)
+/* package */ class PostMessageRingReader extends IPostMessageRing.Stub
+        implements IBinder.DeathRecipient {
+    private static final String TAG = "PostMessageRingReader";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final CustomTabsService mService;
+    private final CustomTabsSessionToken mSessionToken;
+    private final SharedMemory mMemory;
+    private final ByteBuffer mBuffer;
+    private final MessageRing mRing;
+    private final IPostMessageRing mWriter;
+    private long mHead;
+    private boolean mClosed;
+
+    /**
+     * Opens the reading end of a ring, from the arguments of
+     * {@link CustomTabsService#COMMAND_OPEN_POST_MESSAGE_RING}.
+     *
+     * @return The reply to the command, or null if the arguments are invalid.
+     */
+    static @Nullable Bundle open(CustomTabsService service, CustomTabsSessionToken sessionToken,
+            Bundle args) {
+        SharedMemory memory = args.getParcelable(CustomTabsService.KEY_RING_MEMORY);
+        IBinder writerBinder = BundleCompat.getBinder(args, CustomTabsService.KEY_RING_BINDER);
+        if (memory == null || writerBinder == null) return null;
+
+        PostMessageRingReader reader;
+        try {
+            reader = new PostMessageRingReader(service, sessionToken, memory,
+                    IPostMessageRing.Stub.asInterface(writerBinder));
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Could not map postMessage ring.", e);
+            memory.close();
+            return null;
+        }
+        try {
+            writerBinder.linkToDeath(reader, 0);
+        } catch (RemoteException e) {
+            reader.close();
+            return null;
+        }
+        Bundle reply = new Bundle();
+        BundleCompat.putBinder(reply, CustomTabsService.KEY_RING_BINDER, reader);
+        return reply;
+    }
+
+    private PostMessageRingReader(CustomTabsService service,
+            CustomTabsSessionToken sessionToken, SharedMemory memory, IPostMessageRing writer)
+            throws ErrnoException {
+        mService = service;
+        mSessionToken = sessionToken;
+        mMemory = memory;
+        mBuffer = memory.mapReadOnly();
+        mRing = new MessageRing(mBuffer);
+        mWriter = writer;
+    }
+
+    @Override
+    public void onDataAvailable(long tail) {
+        if (!deliver(tail)) return;
+        try {
+            mWriter.onDataConsumed(tail);
+        } catch (RemoteException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void onDataConsumed(long head) {
+        // Only sent to the writer.
+    }
+
+    @Override
+    public void onClosed(long tail) {
+        deliver(tail);
+        close();
+    }
+
+    @Override
+    public void binderDied() {
+        close();
+    }
+
+    /**
+     * Reads the messages up to the given position and delivers them to the service. Oneway calls
+     * from the writer are dispatched one at a time, so messages are delivered in order.
+     *
+     * @return Whether the messages could be read.
+     */
+    private boolean deliver(long tail) {
+        List<byte[]> messages = new ArrayList<>();
+        synchronized (this) {
+            if (mClosed) return false;
+            try {
+                mHead = mRing.read(mHead, tail, messages);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Corrupted postMessage ring, closing it.", e);
+                try {
+                    mWriter.onClosed(mHead);
+                } catch (RemoteException re) {
+                    // The writer is gone as well.
+                }
+                close();
+                return false;
+            }
+        }
+        for (byte[] message : messages) {
+            if (!mService.admit(mSessionToken, AdmissionPolicy.REQUEST_POST_MESSAGE)) continue;
+            mService.postMessage(mSessionToken, new String(message, UTF_8), new Bundle());
+        }
+        return true;
+    }
+
+    private synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        SharedMemory.unmap(mBuffer);
+        mMemory.close();
+        try {
+            mWriter.asBinder().unlinkToDeath(this, 0);
+        } catch (NoSuchElementException e) {
+            // Closed before being linked.
+        }
+    }
+}
@@ -37,6 +37,11 @@ public class PostMessageService extends Service {
         @Override
         public void onPostMessage(ICustomTabsCallback callback,
                                   String message, Bundle extras) throws RemoteException {
+            if (PostMessageStreams.hasStream(extras)) {
+                // Read the stream while the browser is still writing it.
+                message = PostMessageStreams.readStream(extras);
+                if (message == null) return;
+            }
             callback.onPostMessage(message, extras);
         }
     };
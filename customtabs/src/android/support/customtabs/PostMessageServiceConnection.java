@@ -22,23 +22,76 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.support.annotation.IntDef;
 import android.util.Log;
 
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * A {@link ServiceConnection} for Custom Tabs providers to use while connecting to a
  * {@link PostMessageService} on the client side.
+ * <p>
+ * Messages posted before the {@link PostMessageService} is connected are kept in a bounded buffer,
+ * and sent in order once it is, see {@link #setPendingMessageBuffer(int, int)}. Connections of
+ * sessions with the same client can share a binding through a
+ * {@link PostMessageServiceMultiplexer}.
  */
 public class PostMessageServiceConnection implements PostMessageBackend, ServiceConnection {
     private static final String TAG = "PostMessageServConn";
 
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({OVERFLOW_REJECT, OVERFLOW_DROP_OLDEST})
+    public @interface OverflowPolicy {
+    }
+
+    /**
+     * When the pending message buffer is full, new messages are rejected.
+     */
+    public static final int OVERFLOW_REJECT = 0;
+
+    /**
+     * When the pending message buffer is full, the oldest pending message is dropped to make room.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+
+    /** Default maximum number of messages kept until the service is connected. */
+    public static final int DEFAULT_PENDING_MESSAGE_CAPACITY = 32;
+
+    private static class PendingMessage {
+        final String mMessage;
+        final Bundle mExtras;
+
+        PendingMessage(String message, Bundle extras) {
+            mMessage = message;
+            mExtras = extras;
+        }
+    }
+
     private final Object mLock = new Object();
     private final ICustomTabsCallback mSessionBinder;
-    private IPostMessageService mService;
+    // Read without locking by the send path, so that callers do not wait for each other.
+    private final AtomicReference<IPostMessageService> mService = new AtomicReference<>();
     private String mPackageName;
     // Indicates that a message channel has been opened. We're ready to post messages once this is
     // true and we've connected to the {@link PostMessageService}.
     private boolean mMessageChannelCreated;
+    // Messages waiting for the service, guarded by mLock as well as the settings and counters.
+    private final ArrayDeque<PendingMessage> mPendingMessages = new ArrayDeque<>();
+    // Whether mPendingMessages is not empty, readable without the lock.
+    private volatile boolean mHasPendingMessages;
+    private int mPendingMessageCapacity = DEFAULT_PENDING_MESSAGE_CAPACITY;
+    private @OverflowPolicy int mOverflowPolicy = OVERFLOW_REJECT;
+    private int mBufferedMessageCount;
+    private int mFlushedMessageCount;
+    private int mDroppedMessageCount;
+    // Set while the connection shares a binding, instead of binding on its own.
+    private volatile PostMessageServiceMultiplexer mMultiplexer;
 
     public PostMessageServiceConnection(CustomTabsSessionToken session) {
         mSessionBinder = ICustomTabsCallback.Stub.asInterface(session.getCallbackBinder());
@@ -52,6 +105,64 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
         mPackageName = packageName;
     }
 
+    /**
+     * Configures the buffer holding the messages posted before the {@link PostMessageService} is
+     * connected. Messages already pending beyond the new capacity are dropped.
+     *
+     * @param capacity       The maximum number of pending messages, 0 to reject the messages
+     *                       posted while not connected.
+     * @param overflowPolicy What to do with a message posted when the buffer is full.
+     */
+    public void setPendingMessageBuffer(int capacity, @OverflowPolicy int overflowPolicy) {
+        if (capacity < 0) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        synchronized (mLock) {
+            mPendingMessageCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+            while (mPendingMessages.size() > capacity) {
+                mPendingMessages.removeFirst();
+                mDroppedMessageCount++;
+            }
+            mHasPendingMessages = !mPendingMessages.isEmpty();
+        }
+    }
+
+    /**
+     * @return The number of messages waiting for the {@link PostMessageService}.
+     */
+    public int getPendingMessageCount() {
+        synchronized (mLock) {
+            return mPendingMessages.size();
+        }
+    }
+
+    /**
+     * @return The number of messages that have been put in the pending message buffer.
+     */
+    public int getBufferedMessageCount() {
+        synchronized (mLock) {
+            return mBufferedMessageCount;
+        }
+    }
+
+    /**
+     * @return The number of pending messages that have been sent once the service connected.
+     */
+    public int getFlushedMessageCount() {
+        synchronized (mLock) {
+            return mFlushedMessageCount;
+        }
+    }
+
+    /**
+     * @return The number of messages dropped from the pending message buffer, or rejected
+     *         because it was full.
+     */
+    public int getDroppedMessageCount() {
+        synchronized (mLock) {
+            return mDroppedMessageCount;
+        }
+    }
+
     /**
      * Binds the browser side to the client app through the given {@link PostMessageService} name.
      * After this, this {@link PostMessageServiceConnection} can be used for sending postMessage
@@ -80,26 +191,40 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
     }
 
     private boolean isBoundToService() {
-        return mService != null;
+        return mService.get() != null;
+    }
+
+    /* package */ IBinder getSessionBinder() {
+        return mSessionBinder.asBinder();
+    }
+
+    /* package */ void setMultiplexer(PostMessageServiceMultiplexer multiplexer) {
+        mMultiplexer = multiplexer;
     }
 
     /**
-     * Unbinds this service connection from the given context.
+     * Unbinds this service connection from the given context. A connection attached to a
+     * {@link PostMessageServiceMultiplexer} is detached from it instead.
      * @param context The context to be unbound from.
      */
     public void unbindFromContext(Context context) {
-        if (isBoundToService()) context.unbindService(this);
+        PostMessageServiceMultiplexer multiplexer = mMultiplexer;
+        if (multiplexer != null) {
+            multiplexer.detach(this);
+        } else if (isBoundToService()) {
+            context.unbindService(this);
+        }
     }
 
     @Override
     public final void onServiceConnected(ComponentName name, IBinder service) {
-        mService = IPostMessageService.Stub.asInterface(service);
+        mService.set(IPostMessageService.Stub.asInterface(service));
         onPostMessageServiceConnected();
     }
 
     @Override
     public final void onServiceDisconnected(ComponentName name) {
-        mService = null;
+        mService.set(null);
         onPostMessageServiceDisconnected();
     }
 
@@ -111,6 +236,7 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
     /**
      * Records that the message channel has been created and calls through to {@link
      * #notifyMessageChannelReadyInternal}, which will notify the service if it's connected.
+     * Otherwise, the notification is sent once it connects, before the pending messages.
      * @param extras Unused.
      * @return Whether the notification was sent successfully.
      */
@@ -130,13 +256,14 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
      * @return Whether the notification was sent to the remote successfully.
      */
     private final boolean notifyMessageChannelReadyInternal(Bundle extras) {
-        if (!isBoundToService()) return false;
-        synchronized (mLock) {
-            try {
-                mService.onMessageChannelReady(mSessionBinder, extras);
-            } catch (RemoteException e) {
-                return false;
-            }
+        extras = PostMessageStreams.declareStreamingSupport(
+                extras == null ? null : new Bundle(extras));
+        IPostMessageService service = mService.get();
+        if (service == null) return false;
+        try {
+            service.onMessageChannelReady(mSessionBinder, extras);
+        } catch (RemoteException e) {
+            return false;
         }
         return true;
     }
@@ -149,34 +276,101 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
     /**
      * Posts a message to the client. This should be called when a tab controlled by related
      * {@link CustomTabsSession} has sent a postMessage. If postMessage() is called from a single
-     * thread, then the messages will be posted in the same order.
+     * thread, then the messages will be posted in the same order. Calls from different threads
+     * are not serialized, and do not wait for each other's IPC. Messages too large for a binder
+     * transaction are streamed through a pipe if the client supports it.
+     * <p>
+     * Messages posted before the {@link PostMessageService} is connected are buffered, and sent
+     * from {@link #onPostMessageServiceConnected()}.
      *
      * @param message The message sent.
      * @param extras Reserved for future use.
-     * @return Whether the postMessage was sent to the remote successfully.
+     * @return Whether the postMessage was sent to the remote successfully, or buffered.
      */
     public final boolean postMessage(String message, Bundle extras) {
-        if (!isBoundToService()) return false;
-        synchronized (mLock) {
+        IPostMessageService service = mService.get();
+        if (service == null || mHasPendingMessages) {
+            synchronized (mLock) {
+                // Messages queue behind the pending ones until those are flushed, to keep the
+                // order.
+                service = mService.get();
+                if (service == null || !mPendingMessages.isEmpty()) {
+                    return bufferMessageLocked(message, extras);
+                }
+            }
+        }
+        return sendMessage(service, message, extras);
+    }
+
+    private boolean bufferMessageLocked(String message, Bundle extras) {
+        if (mPendingMessages.size() >= mPendingMessageCapacity) {
+            if (mOverflowPolicy == OVERFLOW_REJECT || mPendingMessageCapacity == 0) {
+                mDroppedMessageCount++;
+                return false;
+            }
+            mPendingMessages.removeFirst();
+            mDroppedMessageCount++;
+        }
+        mPendingMessages.addLast(
+                new PendingMessage(message, extras == null ? null : new Bundle(extras)));
+        mHasPendingMessages = true;
+        mBufferedMessageCount++;
+        return true;
+    }
+
+    private boolean sendMessage(IPostMessageService service, String message, Bundle extras) {
+        ParcelFileDescriptor stream = null;
+        if (PostMessageStreams.shouldStream(mSessionBinder.asBinder(), message)) {
+            if (extras == null) extras = new Bundle();
             try {
-                mService.onPostMessage(mSessionBinder, message, extras);
-            } catch (RemoteException e) {
+                stream = PostMessageStreams.startStream(message, extras);
+                message = "";
+            } catch (IOException e) {
                 return false;
             }
         }
+        try {
+            service.onPostMessage(mSessionBinder, message, extras);
+        } catch (RemoteException e) {
+            return false;
+        } finally {
+            PostMessageStreams.closeQuietly(stream);
+        }
         return true;
     }
 
+    /**
+     * Sends the messages posted before the {@link PostMessageService} was connected. Messages
+     * that fail to be sent are dropped.
+     */
+    private void flushPendingMessages() {
+        synchronized (mLock) {
+            IPostMessageService service;
+            while ((service = mService.get()) != null && !mPendingMessages.isEmpty()) {
+                PendingMessage pending = mPendingMessages.removeFirst();
+                if (sendMessage(service, pending.mMessage, pending.mExtras)) {
+                    mFlushedMessageCount++;
+                } else {
+                    mDroppedMessageCount++;
+                }
+            }
+            mHasPendingMessages = !mPendingMessages.isEmpty();
+        }
+    }
+
     @Override
     public void onDisconnectChannel(Context appContext) {
         unbindFromContext(appContext);
     }
 
     /**
-     * Called when the {@link PostMessageService} connection is established.
+     * Called when the {@link PostMessageService} connection is established. Subclasses overriding
+     * it should call through, as this notifies the client of a message channel created before
+     * the connection and sends the pending messages.
      */
     public void onPostMessageServiceConnected() {
         if (mMessageChannelCreated) notifyMessageChannelReadyInternal(null);
+        flushPendingMessages();
     }
 
     /**
@@ -189,6 +383,11 @@ public class PostMessageServiceConnection implements PostMessageBackend, Service
      * @param context Context to use for unbinding if necessary.
      */
     public void cleanup(Context context) {
-        if (isBoundToService()) unbindFromContext(context);
+        synchronized (mLock) {
+            mDroppedMessageCount += mPendingMessages.size();
+            mPendingMessages.clear();
+            mHasPendingMessages = false;
+        }
+        unbindFromContext(context);
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a single {@link PostMessageService} binding per client package between the
+ * {@link PostMessageServiceConnection}s of all the sessions of that client, for Custom Tabs
+ * providers hosting many tabs.
+ * <p>
+ * Every call to the {@link PostMessageService} carries the {@link ICustomTabsCallback} of the
+ * session it is made for, so the client routes the messages to the right session regardless of
+ * the binding they go through. The binding is made when the first connection of a package is
+ * {@link #attach attached}, and released when the last one is {@link #detach detached}.
+ * <p>
+ * An attached connection must not be bound with
+ * {@link PostMessageServiceConnection#bindSessionToPostMessageService(Context)}. Its
+ * {@link PostMessageServiceConnection#cleanup(Context)} detaches it. This class is thread safe.
+ */
+public class PostMessageServiceMultiplexer {
+    private static final String TAG = "PostMessageMultiplexer";
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    private final Map<String, Binding> mBindings = new HashMap<>();
+    private final Map<PostMessageServiceConnection, Binding> mAttachedConnections =
+            new HashMap<>();
+
+    /** A binding to the {@link PostMessageService} of a package, with the sessions using it. */
+    private class Binding implements ServiceConnection {
+        final String mPackageName;
+        /** The attached connections, by {@link ICustomTabsCallback} binder of their session. */
+        final Map<IBinder, PostMessageServiceConnection> mConnections = new HashMap<>();
+        ComponentName mComponentName;
+        IBinder mService;
+
+        Binding(String packageName) {
+            mPackageName = packageName;
+        }
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            List<PostMessageServiceConnection> connections;
+            synchronized (mLock) {
+                mComponentName = name;
+                mService = service;
+                connections = new ArrayList<>(mConnections.values());
+            }
+            for (PostMessageServiceConnection connection : connections) {
+                connection.onServiceConnected(name, service);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            List<PostMessageServiceConnection> connections;
+            synchronized (mLock) {
+                mService = null;
+                connections = new ArrayList<>(mConnections.values());
+            }
+            for (PostMessageServiceConnection connection : connections) {
+                connection.onServiceDisconnected(name);
+            }
+        }
+    }
+
+    /**
+     * @param context A context to bind to the {@link PostMessageService}s with. Its application
+     *                context is used.
+     */
+    public PostMessageServiceMultiplexer(@NonNull Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Attaches a connection to the shared binding of a client package, binding to its
+     * {@link PostMessageService} if this is the first connection for that package.
+     *
+     * @param connection  The connection of a session.
+     * @param packageName The package of the client owning the session.
+     * @return Whether the connection is attached, false if the binding failed or if the
+     *         connection, or another one for the same session, is already attached.
+     */
+    public boolean attach(@NonNull PostMessageServiceConnection connection,
+            @NonNull String packageName) {
+        IBinder sessionBinder = connection.getSessionBinder();
+        Binding binding;
+        ComponentName componentName;
+        IBinder service;
+        synchronized (mLock) {
+            if (mAttachedConnections.containsKey(connection)) return false;
+            binding = mBindings.get(packageName);
+            if (binding == null) {
+                binding = new Binding(packageName);
+                Intent intent = new Intent();
+                intent.setClassName(packageName, PostMessageService.class.getName());
+                if (!mContext.bindService(intent, binding, Context.BIND_AUTO_CREATE)) {
+                    Log.w(TAG, "Could not bind to PostMessageService in client.");
+                    return false;
+                }
+                mBindings.put(packageName, binding);
+            } else if (binding.mConnections.containsKey(sessionBinder)) {
+                return false;
+            }
+            binding.mConnections.put(sessionBinder, connection);
+            mAttachedConnections.put(connection, binding);
+            connection.setMultiplexer(this);
+            componentName = binding.mComponentName;
+            service = binding.mService;
+        }
+        if (service != null) connection.onServiceConnected(componentName, service);
+        return true;
+    }
+
+    /**
+     * Detaches a connection, unbinding from the {@link PostMessageService} of its package if this
+     * was the last connection for it. Does nothing if the connection is not attached.
+     *
+     * @param connection The connection to detach.
+     */
+    public void detach(@NonNull PostMessageServiceConnection connection) {
+        Binding binding;
+        boolean wasConnected;
+        synchronized (mLock) {
+            binding = mAttachedConnections.remove(connection);
+            if (binding == null) return;
+            binding.mConnections.remove(connection.getSessionBinder());
+            connection.setMultiplexer(null);
+            wasConnected = binding.mService != null;
+            if (binding.mConnections.isEmpty()) {
+                mBindings.remove(binding.mPackageName);
+                mContext.unbindService(binding);
+            }
+        }
+        if (wasConnected) connection.onServiceDisconnected(binding.mComponentName);
+    }
+
+    /**
+     * @return The number of {@link PostMessageService} bindings currently held.
+     */
+    public int getBindingCount() {
+        synchronized (mLock) {
+            return mBindings.size();
+        }
+    }
+
+    /**
+     * @return The number of connections currently attached.
+     */
+    public int getAttachedConnectionCount() {
+        synchronized (mLock) {
+            return mAttachedConnections.size();
+        }
+    }
+}
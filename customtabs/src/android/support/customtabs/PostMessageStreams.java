@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves large postMessage payloads through a pipe instead of the binder transaction, which is
+ * limited to about 1MB.
+ * <p>
+ * A streamed message is sent as an empty message whose extras hold the read end of a pipe under
+ * {@link #EXTRA_MESSAGE_STREAM}. The sender writes the UTF-8 payload, prefixed by its length, to
+ * the write end from a small shared pool of threads, while the receiver reads it during the call.
+ * The receiver gives up on a stream not fully received within {@link #READ_TIMEOUT_MS}, so that
+ * a stalled sender does not hold its binder thread.
+ * <p>
+ * Streams are only sent to a peer that has declared it can read them, by setting
+ * {@link #KEY_STREAMING_SUPPORTED} in the extras of
+ * {@link CustomTabsSession#requestPostMessageChannel(android.net.Uri)} for the client and of
+ * {@link PostMessageServiceConnection#notifyMessageChannelReady(Bundle)} for the browser. Both
+ * are set by this library.
+ */
+/* package */ final class PostMessageStreams {
+    private static final String TAG = "PostMessageStreams";
+
+    /** Boolean extra declaring that the sender of the extras can read streamed messages. */
+    static final String KEY_STREAMING_SUPPORTED =
+            "android.support.customtabs.postmessage.STREAMING_SUPPORTED";
+    /** {@link ParcelFileDescriptor} extra to read a streamed message from. */
+    static final String EXTRA_MESSAGE_STREAM =
+            "android.support.customtabs.postmessage.MESSAGE_STREAM";
+
+    /** Messages longer than this many characters are streamed, if the peer supports it. */
+    @VisibleForTesting
+    static final int STREAMING_THRESHOLD_CHARS = 128 * 1024;
+    /** Largest streamed message, to bound the memory a peer can make us allocate. */
+    @VisibleForTesting
+    static final int MAX_STREAM_BYTES = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE_BYTES = 64 * 1024;
+    /** Time given to the sender to write a whole stream. */
+    @VisibleForTesting
+    static final long READ_TIMEOUT_MS = 5000;
+    /** Maximum number of streams written at the same time, further messages fail to be sent. */
+    private static final int MAX_CONCURRENT_WRITES = 4;
+    /** Maximum number of streams read at the same time, further messages fail to be received. */
+    private static final int MAX_CONCURRENT_READS = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The session callback binders whose peer has declared it can read streams. */
+    private static final Set<IBinder> sStreamingPeers =
+            Collections.newSetFromMap(new WeakHashMap<IBinder, Boolean>());
+
+    private static final ThreadPoolExecutor sWriteExecutor = new ThreadPoolExecutor(
+            0, MAX_CONCURRENT_WRITES, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, TAG);
+                }
+            });
+    private static final Semaphore sReadPermits = new Semaphore(MAX_CONCURRENT_READS);
+    /**
+     * Closes the streams whose read deadline has passed, on a thread of its own so that the
+     * deadline holds whatever the reading thread, including the main one, is. Created lazily.
+     */
+    private static Handler sTimeoutHandler;
+
+    private PostMessageStreams() {}
+
+    /**
+     * Records whether the peer of a session can read streams, from the extras it sent.
+     *
+     * @param sessionBinder The {@link ICustomTabsCallback} binder of the session.
+     * @param extras        Extras sent by the peer, possibly holding
+     *                      {@link #KEY_STREAMING_SUPPORTED}.
+     */
+    static void onPeerExtras(IBinder sessionBinder, @Nullable Bundle extras) {
+        if (extras == null || !extras.getBoolean(KEY_STREAMING_SUPPORTED)) return;
+        synchronized (sStreamingPeers) {
+            sStreamingPeers.add(sessionBinder);
+        }
+    }
+
+    /**
+     * @return Whether the given message should be streamed to the peer of the given session.
+     */
+    static boolean shouldStream(IBinder sessionBinder, String message) {
+        if (message == null || message.length() <= STREAMING_THRESHOLD_CHARS) return false;
+        synchronized (sStreamingPeers) {
+            return sStreamingPeers.contains(sessionBinder);
+        }
+    }
+
+    /**
+     * @return The given extras, or new ones if null, declaring that streams can be read.
+     */
+    static Bundle declareStreamingSupport(@Nullable Bundle extras) {
+        Bundle result = extras == null ? new Bundle() : extras;
+        result.putBoolean(KEY_STREAMING_SUPPORTED, true);
+        return result;
+    }
+
+    /**
+     * Starts streaming the given message, and puts the read end of the stream in the extras.
+     *
+     * @param message The message.
+     * @param extras  The extras to send along the empty message.
+     * @return The read end of the stream, to be closed by the caller once the extras have been
+     *         sent.
+     * @throws IOException If the message is too large, the pipe could not be created, or too
+     *                     many streams are being written.
+     */
+    static ParcelFileDescriptor startStream(String message, Bundle extras) throws IOException {
+        final byte[] payload = message.getBytes(UTF_8);
+        if (payload.length > MAX_STREAM_BYTES) {
+            throw new IOException("postMessage too large: " + payload.length + " bytes");
+        }
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final ParcelFileDescriptor writeEnd = pipe[1];
+        try {
+            sWriteExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    OutputStream stream =
+                            new ParcelFileDescriptor.AutoCloseOutputStream(writeEnd);
+                    try {
+                        writePayload(stream, payload);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not write postMessage stream.", e);
+                    } finally {
+                        closeQuietly(stream);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(pipe[0]);
+            closeQuietly(pipe[1]);
+            throw new IOException("Too many postMessage streams being written.");
+        }
+        extras.putParcelable(EXTRA_MESSAGE_STREAM, pipe[0]);
+        return pipe[0];
+    }
+
+    /**
+     * @return Whether the given extras hold a streamed message.
+     */
+    static boolean hasStream(@Nullable Bundle extras) {
+        return extras != null && extras.containsKey(EXTRA_MESSAGE_STREAM);
+    }
+
+    /**
+     * Reads a streamed message, blocking until it has been fully received or for at most
+     * {@link #READ_TIMEOUT_MS}, and removes the stream from the extras. At most
+     * {@link #MAX_CONCURRENT_READS} streams are read at the same time, others are discarded.
+     *
+     * @return The message, or null if it could not be read in time, or at all.
+     */
+    static @Nullable String readStream(Bundle extras) {
+        return readStream(extras, READ_TIMEOUT_MS);
+    }
+
+    @VisibleForTesting
+    static @Nullable String readStream(Bundle extras, long timeoutMs) {
+        if (!sReadPermits.tryAcquire()) {
+            Log.w(TAG, "Too many postMessage streams being read, dropping one.");
+            discardStream(extras);
+            return null;
+        }
+        try {
+            return readStreamWithPermit(extras, timeoutMs);
+        } finally {
+            sReadPermits.release();
+        }
+    }
+
+    private static @Nullable String readStreamWithPermit(Bundle extras, long timeoutMs) {
+        ParcelFileDescriptor readEnd = extras.getParcelable(EXTRA_MESSAGE_STREAM);
+        extras.remove(EXTRA_MESSAGE_STREAM);
+        if (readEnd == null) return null;
+        final InputStream stream = new ParcelFileDescriptor.AutoCloseInputStream(readEnd);
+        // Closing the stream makes the blocked read fail.
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly(stream);
+            }
+        };
+        Handler timeoutHandler = getTimeoutHandler();
+        timeoutHandler.postDelayed(timeout, timeoutMs);
+        try {
+            return new String(readPayload(stream), UTF_8);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read postMessage stream.", e);
+            return null;
+        } finally {
+            timeoutHandler.removeCallbacks(timeout);
+            closeQuietly(stream);
+        }
+    }
+
+    private static synchronized Handler getTimeoutHandler() {
+        if (sTimeoutHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sTimeoutHandler = new Handler(thread.getLooper());
+        }
+        return sTimeoutHandler;
+    }
+
+    /**
+     * Removes a streamed message from the extras without reading it. The sender then fails to
+     * write it, rather than waiting for it to be read.
+     */
+    static void discardStream(@Nullable Bundle extras) {
+        if (!hasStream(extras)) return;
+        ParcelFileDescriptor readEnd = extras.getParcelable(EXTRA_MESSAGE_STREAM);
+        extras.remove(EXTRA_MESSAGE_STREAM);
+        closeQuietly(readEnd);
+    }
+
+    @VisibleForTesting
+    static void writePayload(OutputStream stream, byte[] payload) throws IOException {
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeInt(payload.length);
+        for (int offset = 0; offset < payload.length; offset += CHUNK_SIZE_BYTES) {
+            output.write(payload, offset, Math.min(CHUNK_SIZE_BYTES, payload.length - offset));
+        }
+        output.flush();
+    }
+
+    /**
+     * Reads a payload written by {@link #writePayload}. The buffer grows as the data arrives,
+     * rather than being allocated from the announced length, so that a peer announcing a large
+     * payload without sending it does not make us allocate it.
+     */
+    @VisibleForTesting
+    static byte[] readPayload(InputStream stream) throws IOException {
+        DataInputStream input = new DataInputStream(stream);
+        int length = input.readInt();
+        if (length < 0 || length > MAX_STREAM_BYTES) {
+            throw new IOException("Invalid postMessage stream length: " + length);
+        }
+        byte[] payload = new byte[Math.min(length, CHUNK_SIZE_BYTES)];
+        int received = 0;
+        while (received < length) {
+            if (received == payload.length) {
+                // At most doubles, and never beyond the data received plus a chunk.
+                int capacity = Math.min(length, received + Math.max(received, CHUNK_SIZE_BYTES));
+                payload = Arrays.copyOf(payload, capacity);
+            }
+            int count = input.read(payload, received, Math.min(CHUNK_SIZE_BYTES,
+                    payload.length - received));
+            if (count < 0) throw new EOFException("postMessage stream truncated");
+            received += count;
+        }
+        return payload;
+    }
+
+    static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it.
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a stream of scored URL candidates into a small number of
+ * {@link CustomTabsSession#mayLaunchUrl(Uri, Bundle, List)} calls.
+ * <p>
+ * Candidates are added with {@link #addCandidate} as they are discovered, for instance while a
+ * feed is scrolled, and sent with {@link #flush}. Each flush sends the best scoring candidates in
+ * a single call, the first one as the most likely URL and the others through
+ * {@link CustomTabsService#KEY_URL} bundles. URLs that have been hinted recently are skipped, and
+ * the number of calls is limited to a budget per second.
+ * <p>
+ * {@link #recordLaunch} should be called when a URL is actually opened, to keep track of how
+ * often the hints were useful.
+ */
+public class PrefetchScheduler {
+    /** Default maximum number of URLs sent in a single hint. */
+    public static final int DEFAULT_MAX_URLS_PER_HINT = 3;
+    /** Default number of hints that can be sent per second. */
+    public static final int DEFAULT_HINTS_PER_SECOND = 2;
+    /** Default time during which a hinted URL is not sent again. */
+    public static final long DEFAULT_DEDUP_WINDOW_MS = 30000;
+
+    private static final long ONE_SECOND_MS = 1000;
+
+    private final Object mLock = new Object();
+    private final CustomTabsSession mSession;
+
+    private int mMaxUrlsPerHint = DEFAULT_MAX_URLS_PER_HINT;
+    private int mHintsPerSecond = DEFAULT_HINTS_PER_SECOND;
+    private long mDedupWindowMs = DEFAULT_DEDUP_WINDOW_MS;
+
+    /** Best score of each pending candidate. */
+    private final Map<Uri, Float> mCandidates = new HashMap<>();
+    /** Time each URL was last hinted at, oldest first. */
+    private final LinkedHashMap<Uri, Long> mRecentlyHinted = new LinkedHashMap<>();
+
+    /** Token bucket state for the rate limit. */
+    private float mAvailableHints = DEFAULT_HINTS_PER_SECOND;
+    private long mLastRefillTimeMs = -1;
+
+    private long mHintCount;
+    private long mHintedUrlCount;
+    private long mDeduplicatedCount;
+    private long mRateLimitedCount;
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param session The session to send the hints through.
+     */
+    public PrefetchScheduler(@NonNull CustomTabsSession session) {
+        mSession = session;
+    }
+
+    /**
+     * Sets the maximum number of URLs sent in a single hint, including the most likely one.
+     */
+    public void setMaxUrlsPerHint(int maxUrlsPerHint) {
+        if (maxUrlsPerHint < 1) throw new IllegalArgumentException("At least one URL is needed");
+        synchronized (mLock) {
+            mMaxUrlsPerHint = maxUrlsPerHint;
+        }
+    }
+
+    /**
+     * Sets the number of {@link CustomTabsSession#mayLaunchUrl} calls allowed per second.
+     */
+    public void setHintsPerSecond(int hintsPerSecond) {
+        if (hintsPerSecond < 1) throw new IllegalArgumentException("The budget must be positive");
+        synchronized (mLock) {
+            mHintsPerSecond = hintsPerSecond;
+            mAvailableHints = Math.min(mAvailableHints, hintsPerSecond);
+        }
+    }
+
+    /**
+     * Sets for how long a hinted URL is not sent again, and still counts as a hit when launched.
+     */
+    public void setDedupWindowMs(long dedupWindowMs) {
+        synchronized (mLock) {
+            mDedupWindowMs = dedupWindowMs;
+        }
+    }
+
+    /**
+     * Adds a candidate for the next {@link #flush}. Adding the same URL several times keeps the
+     * highest score.
+     *
+     * @param url   The URL that may be launched.
+     * @param score How likely the URL is to be launched. Only the relative order matters.
+     */
+    public void addCandidate(@NonNull Uri url, float score) {
+        synchronized (mLock) {
+            Float previousScore = mCandidates.get(url);
+            if (previousScore == null || previousScore < score) mCandidates.put(url, score);
+        }
+    }
+
+    /**
+     * Drops all the pending candidates.
+     */
+    public void clearCandidates() {
+        synchronized (mLock) {
+            mCandidates.clear();
+        }
+    }
+
+    /**
+     * Sends the best pending candidates that have not been hinted recently in a single
+     * {@link CustomTabsSession#mayLaunchUrl} call, if the rate limit allows it. The pending
+     * candidates are kept if the rate limit is exceeded, and dropped otherwise.
+     *
+     * @return Whether a hint has been sent and accepted by the browser.
+     */
+    public boolean flush() {
+        Uri mostLikelyUrl;
+        List<Bundle> otherLikelyBundles;
+        synchronized (mLock) {
+            if (mCandidates.isEmpty()) return false;
+            long now = getCurrentTimeMs();
+            refillLocked(now);
+            if (mAvailableHints < 1) {
+                mRateLimitedCount++;
+                return false;
+            }
+
+            pruneRecentlyHintedLocked(now);
+            List<Uri> urls = pickCandidatesLocked();
+            mCandidates.clear();
+            if (urls.isEmpty()) return false;
+
+            mAvailableHints--;
+            mHintCount++;
+            mHintedUrlCount += urls.size();
+            for (Uri url : urls) {
+                // Re-insert so that the iteration order stays the hint order.
+                mRecentlyHinted.remove(url);
+                mRecentlyHinted.put(url, now);
+            }
+
+            mostLikelyUrl = urls.get(0);
+            otherLikelyBundles = new ArrayList<>(urls.size() - 1);
+            for (int i = 1; i < urls.size(); i++) {
+                Bundle bundle = new Bundle();
+                bundle.putParcelable(CustomTabsService.KEY_URL, urls.get(i));
+                otherLikelyBundles.add(bundle);
+            }
+        }
+        // Do not hold the lock during the IPC.
+        return mSession.mayLaunchUrl(mostLikelyUrl, new Bundle(), otherLikelyBundles);
+    }
+
+    /**
+     * Records that a URL has been launched, counting a hit if it had been hinted recently.
+     */
+    public void recordLaunch(@NonNull Uri url) {
+        synchronized (mLock) {
+            pruneRecentlyHintedLocked(getCurrentTimeMs());
+            if (mRecentlyHinted.containsKey(url)) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+    }
+
+    /** @return The number of {@link CustomTabsSession#mayLaunchUrl} calls made. */
+    public long getHintCount() {
+        synchronized (mLock) {
+            return mHintCount;
+        }
+    }
+
+    /** @return The total number of URLs sent, across all the hints. */
+    public long getHintedUrlCount() {
+        synchronized (mLock) {
+            return mHintedUrlCount;
+        }
+    }
+
+    /** @return The number of candidates skipped because they had been hinted recently. */
+    public long getDeduplicatedCount() {
+        synchronized (mLock) {
+            return mDeduplicatedCount;
+        }
+    }
+
+    /** @return The number of flushes delayed because of the rate limit. */
+    public long getRateLimitedCount() {
+        synchronized (mLock) {
+            return mRateLimitedCount;
+        }
+    }
+
+    /** @return The number of launched URLs that had been hinted recently. */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /** @return The number of launched URLs that had not been hinted recently. */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    @VisibleForTesting
+    /* package */ long getCurrentTimeMs() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private void refillLocked(long now) {
+        if (mLastRefillTimeMs >= 0) {
+            float refill = (now - mLastRefillTimeMs) * mHintsPerSecond / (float) ONE_SECOND_MS;
+            mAvailableHints = Math.min(mHintsPerSecond, mAvailableHints + refill);
+        }
+        mLastRefillTimeMs = now;
+    }
+
+    private void pruneRecentlyHintedLocked(long now) {
+        Iterator<Map.Entry<Uri, Long>> it = mRecentlyHinted.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() < mDedupWindowMs) break;
+            it.remove();
+        }
+    }
+
+    private List<Uri> pickCandidatesLocked() {
+        List<Map.Entry<Uri, Float>> candidates = new ArrayList<>(mCandidates.entrySet());
+        Collections.sort(candidates, new Comparator<Map.Entry<Uri, Float>>() {
+            @Override
+            public int compare(Map.Entry<Uri, Float> a, Map.Entry<Uri, Float> b) {
+                return Float.compare(b.getValue(), a.getValue());
+            }
+        });
+
+        List<Uri> urls = new ArrayList<>(mMaxUrlsPerHint);
+        for (Map.Entry<Uri, Float> candidate : candidates) {
+            if (urls.size() == mMaxUrlsPerHint) break;
+            if (mRecentlyHinted.containsKey(candidate.getKey())) {
+                mDeduplicatedCount++;
+                continue;
+            }
+            urls.add(candidate.getKey());
+        }
+        return urls;
+    }
+}
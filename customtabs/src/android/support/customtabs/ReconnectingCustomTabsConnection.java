@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection to a {@link CustomTabsService} that survives the death of the browser process.
+ * <p>
+ * When the connection is lost, this rebinds to the service with an exponential backoff, and
+ * recreates the sessions obtained through {@link #newSession} with the same session id, so that
+ * the browser keeps associating them with the same Custom Tabs. While the connection is down, the
+ * latest {@link ReconnectingSession#mayLaunchUrl} hint of each session is kept and sent once
+ * reconnected. Sessions that are not needed anymore should be {@link ReconnectingSession#close
+ * closed}, so that they are not recreated.
+ * <p>
+ * This class should only be used on the UI thread.
+ */
+public class ReconnectingCustomTabsConnection {
+    private static final String TAG = "ReconnectingConnection";
+
+    /** Default delay before the first rebind attempt. */
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 1000;
+    /** Default maximum delay between two rebind attempts. */
+    public static final long DEFAULT_MAX_BACKOFF_MS = 60000;
+
+    /**
+     * A session that is transparently recreated after a reconnection.
+     */
+    public class ReconnectingSession {
+        private final CustomTabsCallback mCallback;
+        private final int mId;
+        @Nullable private CustomTabsSession mSession;
+        private boolean mClosed;
+
+        @Nullable private Uri mPendingUrl;
+        @Nullable private Bundle mPendingExtras;
+        @Nullable private List<Bundle> mPendingOtherLikelyBundles;
+
+        private ReconnectingSession(@Nullable CustomTabsCallback callback, int id) {
+            mCallback = callback;
+            mId = id;
+        }
+
+        /**
+         * @return The current session, or null while the connection is down. It must not be
+         *         kept, as it is replaced after a reconnection.
+         */
+        public @Nullable CustomTabsSession getSession() {
+            return mSession;
+        }
+
+        /**
+         * As {@link CustomTabsSession#mayLaunchUrl(Uri, Bundle, List)}. If the connection is down,
+         * the hint replaces any previously buffered one and is sent after the next
+         * reconnection. A hint rejected by the browser is not sent again.
+         *
+         * @return Whether the hint was sent and accepted.
+         */
+        public boolean mayLaunchUrl(Uri url, @Nullable Bundle extras,
+                @Nullable List<Bundle> otherLikelyBundles) {
+            if (mClosed) return false;
+            if (mSession == null) {
+                mPendingUrl = url;
+                mPendingExtras = extras;
+                mPendingOtherLikelyBundles = otherLikelyBundles;
+                return false;
+            }
+            clearPendingHint();
+            return mSession.mayLaunchUrl(url, copy(extras), otherLikelyBundles);
+        }
+
+        /**
+         * Stops recreating this session after reconnections, and drops its buffered hint. The
+         * session must not be used after this.
+         */
+        public void close() {
+            if (mClosed) return;
+            mClosed = true;
+            mSessions.remove(this);
+            mSession = null;
+            clearPendingHint();
+        }
+
+        private void attach(CustomTabsClient client) {
+            mSession = client.newSession(mCallback, mId);
+            if (mSession == null || mPendingUrl == null) return;
+            mayLaunchUrl(mPendingUrl, mPendingExtras, mPendingOtherLikelyBundles);
+        }
+
+        private void clearPendingHint() {
+            mPendingUrl = null;
+            mPendingExtras = null;
+            mPendingOtherLikelyBundles = null;
+        }
+
+        private void detach() {
+            mSession = null;
+        }
+    }
+
+    private final Context mContext;
+    private final String mPackageName;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<ReconnectingSession> mSessions = new ArrayList<>();
+    private final Runnable mRebindRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rebind();
+        }
+    };
+
+    private long mInitialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private long mMaxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+    private long mBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+    private int mReconnectionCount;
+    private boolean mHasConnected;
+
+    @Nullable private Connection mConnection;
+    @Nullable private CustomTabsClient mClient;
+
+    private class Connection extends CustomTabsServiceConnection {
+        @Override
+        public void onCustomTabsServiceConnected(ComponentName name, CustomTabsClient client) {
+            if (mConnection != this) return;
+            onConnected(client);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            if (mConnection != this) return;
+            onDisconnected();
+        }
+    }
+
+    /**
+     * @param context     A Context used for binding. Only its application context is retained.
+     * @param packageName The package of the {@link CustomTabsService} provider.
+     */
+    public ReconnectingCustomTabsConnection(@NonNull Context context,
+            @NonNull String packageName) {
+        mContext = context.getApplicationContext();
+        mPackageName = packageName;
+    }
+
+    /**
+     * Sets the delay before the first rebind attempt, doubled after each failed attempt up to
+     * the given maximum.
+     */
+    public void setBackoff(long initialBackoffMs, long maxBackoffMs) {
+        mInitialBackoffMs = initialBackoffMs;
+        mMaxBackoffMs = maxBackoffMs;
+        mBackoffMs = initialBackoffMs;
+    }
+
+    /**
+     * Binds to the service. Rebind attempts are scheduled if this fails.
+     *
+     * @return Whether the initial binding was successful.
+     */
+    public boolean connect() {
+        if (mConnection != null) return true;
+        return bind();
+    }
+
+    /**
+     * Unbinds from the service and stops reconnecting.
+     */
+    public void disconnect() {
+        mHandler.removeCallbacks(mRebindRunnable);
+        unbind();
+        mBackoffMs = mInitialBackoffMs;
+        mHasConnected = false;
+    }
+
+    /**
+     * @return The current client, or null while the connection is down.
+     */
+    public @Nullable CustomTabsClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * @return The number of times the connection has been re-established after being lost.
+     */
+    public int getReconnectionCount() {
+        return mReconnectionCount;
+    }
+
+    /**
+     * Creates a session that will be recreated with the same id after every reconnection, until
+     * it is closed. If the connection is down, the underlying session is created once connected.
+     *
+     * @param callback The callback of the session. Can be null.
+     * @param id       The session id, see {@link CustomTabsClient#newSession(CustomTabsCallback,
+     *                 int)}.
+     */
+    public ReconnectingSession newSession(@Nullable CustomTabsCallback callback, int id) {
+        ReconnectingSession session = new ReconnectingSession(callback, id);
+        mSessions.add(session);
+        if (mClient != null) session.attach(mClient);
+        return session;
+    }
+
+    private void onConnected(CustomTabsClient client) {
+        mHandler.removeCallbacks(mRebindRunnable);
+        if (mHasConnected) mReconnectionCount++;
+        mHasConnected = true;
+        mBackoffMs = mInitialBackoffMs;
+        mClient = client;
+        for (ReconnectingSession session : new ArrayList<>(mSessions)) session.attach(client);
+    }
+
+    private void onDisconnected() {
+        Log.w(TAG, "Lost connection to " + mPackageName + ", reconnecting.");
+        mClient = null;
+        for (ReconnectingSession session : mSessions) session.detach();
+        // The system may restart the service by itself, rebind if it has not done so in time.
+        scheduleRebind();
+    }
+
+    private void rebind() {
+        if (mClient != null) return;
+        unbind();
+        bind();
+    }
+
+    private boolean bind() {
+        Connection connection = new Connection();
+        mConnection = connection;
+        boolean bound;
+        try {
+            bound = CustomTabsClient.bindCustomTabsService(mContext, mPackageName, connection);
+        } catch (SecurityException e) {
+            Log.w(TAG, "SecurityException while binding.", e);
+            mConnection = null;
+            scheduleRebind();
+            return false;
+        }
+        if (!bound) {
+            unbind();
+            scheduleRebind();
+            return false;
+        }
+        return true;
+    }
+
+    private void unbind() {
+        Connection connection = mConnection;
+        mConnection = null;
+        mClient = null;
+        for (ReconnectingSession session : mSessions) session.detach();
+        if (connection == null) return;
+        try {
+            mContext.unbindService(connection);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Connection to " + mPackageName + " was not bound.", e);
+        }
+    }
+
+    private void scheduleRebind() {
+        mHandler.removeCallbacks(mRebindRunnable);
+        mHandler.postDelayed(mRebindRunnable, mBackoffMs);
+        mBackoffMs = Math.min(mBackoffMs * 2, mMaxBackoffMs);
+    }
+
+    private static Bundle copy(@Nullable Bundle bundle) {
+        // CustomTabsSession adds the session id to the extras, keep the caller's bundle intact.
+        return bundle == null ? new Bundle() : new Bundle(bundle);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.Parcel;
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in instrumentation of the calls made to {@link ICustomTabsService} by
+ * {@link CustomTabsClient} and {@link CustomTabsSession}.
+ * <p>
+ * Once a {@link Listener} is installed with {@link #install}, the clients created from new
+ * connections report the latency, result and optionally the request size of every call. The
+ * {@link Histogram} listener aggregates these in memory, and can be exported periodically to a
+ * metrics pipeline.
+ */
+public final class ServiceCallMetrics {
+    private static final String TAG = "ServiceCallMetrics";
+
+    public static final String METHOD_WARMUP = "warmup";
+    public static final String METHOD_NEW_SESSION = "newSession";
+    public static final String METHOD_MAY_LAUNCH_URL = "mayLaunchUrl";
+    public static final String METHOD_EXTRA_COMMAND = "extraCommand";
+    public static final String METHOD_UPDATE_VISUALS = "updateVisuals";
+    public static final String METHOD_REQUEST_POST_MESSAGE_CHANNEL = "requestPostMessageChannel";
+    public static final String METHOD_POST_MESSAGE = "postMessage";
+    public static final String METHOD_VALIDATE_RELATIONSHIP = "validateRelationship";
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({CustomTabsService.RESULT_SUCCESS, CustomTabsService.RESULT_FAILURE_DISALLOWED,
+            CustomTabsService.RESULT_FAILURE_REMOTE_ERROR,
+            CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR, RESULT_RETURNED_FALSE})
+    public @interface CallResult {
+    }
+
+    /**
+     * Reported for a call returning a boolean that returned false. The service does not say why,
+     * so this is kept apart from the {@link CustomTabsService} results.
+     */
+    public static final int RESULT_RETURNED_FALSE = 1;
+
+    /**
+     * Receives a report for every instrumented call. May be called on any thread, and should
+     * return quickly as it runs on the calling thread right after the call.
+     */
+    public interface Listener {
+        /**
+         * @param method           One of the {@code METHOD_*} constants.
+         * @param durationNs       The wall clock duration of the call.
+         * @param result           {@link CustomTabsService#RESULT_SUCCESS} if the call succeeded,
+         *                         {@link CustomTabsService#RESULT_FAILURE_REMOTE_ERROR} if it
+         *                         threw, and for calls returning a boolean,
+         *                         {@link #RESULT_RETURNED_FALSE} if it returned false.
+         *                         postMessage reports its own result.
+         * @param requestSizeBytes The size of the marshalled arguments, or -1 if not measured.
+         */
+        void onServiceCall(@NonNull String method, long durationNs, @CallResult int result,
+                int requestSizeBytes);
+    }
+
+    private static volatile Listener sListener;
+    private static volatile boolean sMeasureRequestSize;
+
+    private ServiceCallMetrics() {}
+
+    /**
+     * Starts instrumenting the clients created from connections established after this call.
+     *
+     * @param listener           Receives the reports.
+     * @param measureRequestSize Whether to measure the size of the arguments of each call. This
+     *                           marshals them a second time, so it has a cost.
+     */
+    public static void install(@NonNull Listener listener, boolean measureRequestSize) {
+        sMeasureRequestSize = measureRequestSize;
+        sListener = listener;
+    }
+
+    /**
+     * Stops reporting calls. Already instrumented clients stop reporting as well.
+     */
+    public static void uninstall() {
+        sListener = null;
+    }
+
+    /* package */ static ICustomTabsService instrument(ICustomTabsService service) {
+        if (sListener == null) return service;
+        return new InstrumentedCustomTabsService(service);
+    }
+
+    /* package */ static boolean isMeasuringRequestSize() {
+        return sListener != null && sMeasureRequestSize;
+    }
+
+    /* package */ static void report(String method, long startNs, @CallResult int result,
+            @Nullable Parcel request) {
+        Listener listener = sListener;
+        int requestSizeBytes = -1;
+        if (request != null) {
+            requestSizeBytes = request.dataSize();
+            request.recycle();
+        }
+        if (listener == null) return;
+        try {
+            listener.onServiceCall(method, System.nanoTime() - startNs, result, requestSizeBytes);
+        } catch (RuntimeException e) {
+            // A broken listener must not be mistaken for a failed call.
+            Log.w(TAG, "Exception in ServiceCallMetrics listener.", e);
+        }
+    }
+
+    /**
+     * A {@link Listener} keeping, for each method, a histogram of latencies in power of two
+     * microsecond buckets, a count of each result code and the total request size.
+     */
+    public static class Histogram implements Listener {
+        /** Bucket i counts the calls lasting less than 2^i microseconds, the last one the rest. */
+        public static final int BUCKET_COUNT = 24;
+
+        private static class MethodStats {
+            final AtomicLongArray mLatencyBuckets = new AtomicLongArray(BUCKET_COUNT);
+            final ConcurrentMap<Integer, AtomicLong> mResults = new ConcurrentHashMap<>();
+            final AtomicLong mRequestBytes = new AtomicLong();
+        }
+
+        private final ConcurrentMap<String, MethodStats> mStats = new ConcurrentHashMap<>();
+
+        @Override
+        public void onServiceCall(@NonNull String method, long durationNs,
+                @CallResult int result, int requestSizeBytes) {
+            MethodStats stats = getStats(method);
+            stats.mLatencyBuckets.incrementAndGet(getBucket(durationNs));
+            AtomicLong resultCount = stats.mResults.get(result);
+            if (resultCount == null) {
+                stats.mResults.putIfAbsent(result, new AtomicLong());
+                resultCount = stats.mResults.get(result);
+            }
+            resultCount.incrementAndGet();
+            if (requestSizeBytes > 0) stats.mRequestBytes.addAndGet(requestSizeBytes);
+        }
+
+        /**
+         * @return A copy of the latency buckets of the given method.
+         */
+        public long[] getLatencyBuckets(@NonNull String method) {
+            MethodStats stats = getStats(method);
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) buckets[i] = stats.mLatencyBuckets.get(i);
+            return buckets;
+        }
+
+        /**
+         * @return The number of calls to the given method.
+         */
+        public long getCallCount(@NonNull String method) {
+            long count = 0;
+            for (long bucket : getLatencyBuckets(method)) count += bucket;
+            return count;
+        }
+
+        /**
+         * @return The number of calls to the given method that had the given result.
+         */
+        public long getResultCount(@NonNull String method, @CallResult int result) {
+            AtomicLong count = getStats(method).mResults.get(result);
+            return count == null ? 0 : count.get();
+        }
+
+        /**
+         * @return The total measured request size of the calls to the given method.
+         */
+        public long getRequestBytes(@NonNull String method) {
+            return getStats(method).mRequestBytes.get();
+        }
+
+        /**
+         * Drops all the recorded data, typically after it has been exported.
+         */
+        public void reset() {
+            mStats.clear();
+        }
+
+        private MethodStats getStats(String method) {
+            MethodStats stats = mStats.get(method);
+            if (stats != null) return stats;
+            mStats.putIfAbsent(method, new MethodStats());
+            return mStats.get(method);
+        }
+
+        private static int getBucket(long durationNs) {
+            long durationUs = durationNs / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(durationUs);
+            return Math.min(bucket, BUCKET_COUNT - 1);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static android.support.annotation.RestrictTo.Scope.LIBRARY_GROUP;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.RestrictTo;
+import android.util.SparseArray;
+
+/**
+ * Process-wide cache of the {@link PendingIntent}s used to identify the calling application, as
+ * session ids or as {@link android.support.customtabs.browseractions.BrowserActionsIntent} app
+ * ids.
+ * <p>
+ * These {@link PendingIntent}s have an empty {@link Intent} and only differ by their request code.
+ * Creating one is a round trip to the system, but the system returns an equal token every time
+ * for the same request code, so it only needs to be created once per process.
+ *
+ * @hide
+ */
+@RestrictTo(LIBRARY_GROUP)
+public final class SessionIdCache {
+    private static final SparseArray<PendingIntent> sPendingIntents = new SparseArray<>();
+
+    private SessionIdCache() {}
+
+    /**
+     * @param context {@link Context} of the calling application.
+     * @param id      The request code of the {@link PendingIntent}.
+     * @return A {@link PendingIntent} with an empty action, only usable as an identifier.
+     */
+    public static PendingIntent getPendingIntent(Context context, int id) {
+        synchronized (sPendingIntents) {
+            PendingIntent pendingIntent = sPendingIntents.get(id);
+            if (pendingIntent == null) {
+                // Create a {@link PendingIntent} with empty Action to prevent using it other than
+                // as an identifier.
+                pendingIntent = PendingIntent.getActivity(context, id, new Intent(), 0);
+                sPendingIntents.put(id, pendingIntent);
+            }
+            return pendingIntent;
+        }
+    }
+}
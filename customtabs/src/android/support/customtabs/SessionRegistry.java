@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.app.PendingIntent;
+import android.os.IBinder;
+import android.os.IBinder.DeathRecipient;
+import android.support.annotation.Nullable;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The live sessions of a {@link CustomTabsService}, indexed by {@link ICustomTabsCallback} binder
+ * and by session id.
+ * <p>
+ * Lookups, additions and removals do not take a global lock, and iterating over
+ * {@link #getSessions()} neither locks nor throws on concurrent changes.
+ */
+/* package */ final class SessionRegistry {
+    private static class Registration {
+        final CustomTabsSessionToken mToken;
+        final DeathRecipient mDeathRecipient;
+
+        Registration(CustomTabsSessionToken token, DeathRecipient deathRecipient) {
+            mToken = token;
+            mDeathRecipient = deathRecipient;
+        }
+    }
+
+    private final ConcurrentHashMap<IBinder, Registration> mByCallback =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PendingIntent, Registration> mById =
+            new ConcurrentHashMap<>();
+    private final Collection<CustomTabsSessionToken> mSessions =
+            new AbstractCollection<CustomTabsSessionToken>() {
+        @Override
+        public Iterator<CustomTabsSessionToken> iterator() {
+            final Iterator<Registration> registrations = mByCallback.values().iterator();
+            return new Iterator<CustomTabsSessionToken>() {
+                @Override
+                public boolean hasNext() {
+                    return registrations.hasNext();
+                }
+
+                @Override
+                public CustomTabsSessionToken next() {
+                    return registrations.next().mToken;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return mByCallback.size();
+        }
+    };
+
+    /**
+     * Registers a session, replacing any previous registration of its callback binder.
+     *
+     * @param token          The session, which must have a callback.
+     * @param deathRecipient The recipient linked to the death of the callback binder.
+     * @return The recipient of the replaced registration, to be unlinked, or null.
+     */
+    @Nullable DeathRecipient put(CustomTabsSessionToken token, DeathRecipient deathRecipient) {
+        Registration registration = new Registration(token, deathRecipient);
+        Registration previous = mByCallback.put(token.getCallbackBinder(), registration);
+        if (previous != null && previous.mToken.getId() != null) {
+            mById.remove(previous.mToken.getId(), previous);
+        }
+        if (token.getId() != null) mById.put(token.getId(), registration);
+        return previous == null ? null : previous.mDeathRecipient;
+    }
+
+    /**
+     * Removes the session registered for a callback binder.
+     *
+     * @return The recipient linked to the death of the binder, to be unlinked, or null if no
+     *         session was registered for it.
+     */
+    @Nullable DeathRecipient remove(IBinder callbackBinder) {
+        Registration registration = mByCallback.remove(callbackBinder);
+        if (registration == null) return null;
+        if (registration.mToken.getId() != null) {
+            mById.remove(registration.mToken.getId(), registration);
+        }
+        return registration.mDeathRecipient;
+    }
+
+    /**
+     * Removes the session registered for a callback binder, only if it was registered with the
+     * given recipient.
+     *
+     * @return Whether a session was removed.
+     */
+    boolean remove(IBinder callbackBinder, DeathRecipient deathRecipient) {
+        Registration registration = mByCallback.get(callbackBinder);
+        if (registration == null || registration.mDeathRecipient != deathRecipient
+                || !mByCallback.remove(callbackBinder, registration)) {
+            return false;
+        }
+        if (registration.mToken.getId() != null) {
+            mById.remove(registration.mToken.getId(), registration);
+        }
+        return true;
+    }
+
+    /**
+     * @return The session registered for the given callback binder, or null.
+     */
+    @Nullable CustomTabsSessionToken getByCallback(IBinder callbackBinder) {
+        Registration registration = mByCallback.get(callbackBinder);
+        return registration == null ? null : registration.mToken;
+    }
+
+    /**
+     * @return The session registered with the given id, or null.
+     */
+    @Nullable CustomTabsSessionToken getById(PendingIntent sessionId) {
+        Registration registration = mById.get(sessionId);
+        return registration == null ? null : registration.mToken;
+    }
+
+    /**
+     * @return The number of registered sessions.
+     */
+    int size() {
+        return mByCallback.size();
+    }
+
+    /**
+     * @return A live, unmodifiable view of the registered sessions.
+     */
+    Collection<CustomTabsSessionToken> getSessions() {
+        return mSessions;
+    }
+}
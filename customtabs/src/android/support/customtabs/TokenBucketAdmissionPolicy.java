@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link AdmissionPolicy} limiting the rate of requests of each type, both per session and
+ * per calling application, with token buckets.
+ * <p>
+ * Each bucket holds up to a burst of requests and is refilled at a steady rate, so a client can
+ * send short bursts but not sustain more than the rate. A request is admitted only if both the
+ * bucket of its session and that of its application allow it. This class is thread safe, and
+ * requests only contend on the buckets they use.
+ */
+public class TokenBucketAdmissionPolicy implements AdmissionPolicy {
+    private static final int REQUEST_TYPE_COUNT = 2;
+
+    /** Default rate of requests of each type per session. */
+    public static final double DEFAULT_SESSION_RATE_PER_SECOND = 50;
+    /** Default burst of requests of each type per session. */
+    public static final int DEFAULT_SESSION_BURST = 100;
+    /** Default rate of requests of each type per calling application. */
+    public static final double DEFAULT_UID_RATE_PER_SECOND = 200;
+    /** Default burst of requests of each type per calling application. */
+    public static final int DEFAULT_UID_BURST = 400;
+
+    /** A token bucket, guarded by its own monitor. */
+    private static class Bucket {
+        double mTokens;
+        long mLastRefillMs;
+
+        Bucket(int burst, long nowMs) {
+            mTokens = burst;
+            mLastRefillMs = nowMs;
+        }
+
+        void refill(double ratePerSecond, int burst, long nowMs) {
+            mTokens = Math.min(burst, mTokens + (nowMs - mLastRefillMs) * ratePerSecond / 1000);
+            mLastRefillMs = nowMs;
+        }
+    }
+
+    private final double mSessionRatePerSecond;
+    private final int mSessionBurst;
+    private final double mUidRatePerSecond;
+    private final int mUidBurst;
+    /**
+     * Buckets of each request type, by callback binder of the session. Weakly keyed so that
+     * sessions are forgotten once gone, guarded by itself only while looking up the buckets.
+     */
+    private final Map<IBinder, Bucket[]> mSessionBuckets = new WeakHashMap<>();
+    /** Buckets of each request type, by calling UID. */
+    private final ConcurrentMap<Integer, Bucket[]> mUidBuckets = new ConcurrentHashMap<>();
+    private final AtomicLong mAdmittedCount = new AtomicLong();
+    private final AtomicLong mRejectedBySessionCount = new AtomicLong();
+    private final AtomicLong mRejectedByUidCount = new AtomicLong();
+
+    /**
+     * Creates a policy with the default rates and bursts.
+     */
+    public TokenBucketAdmissionPolicy() {
+        this(DEFAULT_SESSION_RATE_PER_SECOND, DEFAULT_SESSION_BURST,
+                DEFAULT_UID_RATE_PER_SECOND, DEFAULT_UID_BURST);
+    }
+
+    /**
+     * @param sessionRatePerSecond The sustained rate of requests of each type per session.
+     * @param sessionBurst         The number of requests of each type a session can send at once.
+     * @param uidRatePerSecond     The sustained rate of requests of each type per application.
+     * @param uidBurst             The number of requests of each type an application can send at
+     *                             once, across its sessions.
+     */
+    public TokenBucketAdmissionPolicy(double sessionRatePerSecond, int sessionBurst,
+            double uidRatePerSecond, int uidBurst) {
+        if (sessionBurst < 1 || uidBurst < 1) throw new IllegalArgumentException("Invalid burst");
+        mSessionRatePerSecond = sessionRatePerSecond;
+        mSessionBurst = sessionBurst;
+        mUidRatePerSecond = uidRatePerSecond;
+        mUidBurst = uidBurst;
+    }
+
+    @Override
+    public boolean admit(@NonNull CustomTabsSessionToken sessionToken, int uid,
+            @Request int request) {
+        Bucket sessionBucket = null;
+        if (sessionToken.hasCallback()) {
+            Bucket[] buckets;
+            synchronized (mSessionBuckets) {
+                buckets = mSessionBuckets.get(sessionToken.getCallbackBinder());
+                if (buckets == null) {
+                    buckets = createBuckets(mSessionBurst);
+                    mSessionBuckets.put(sessionToken.getCallbackBinder(), buckets);
+                }
+            }
+            sessionBucket = buckets[request];
+        }
+        Bucket[] buckets = mUidBuckets.get(uid);
+        if (buckets == null) {
+            Bucket[] newBuckets = createBuckets(mUidBurst);
+            buckets = mUidBuckets.putIfAbsent(uid, newBuckets);
+            if (buckets == null) buckets = newBuckets;
+        }
+        Bucket uidBucket = buckets[request];
+
+        if (sessionBucket == null) return admit(null, uidBucket);
+        // Always the session bucket first, so that concurrent requests cannot deadlock.
+        synchronized (sessionBucket) {
+            return admit(sessionBucket, uidBucket);
+        }
+    }
+
+    /**
+     * Takes a token from both buckets if they both have one. The session bucket, if any, must
+     * be locked by the caller.
+     */
+    private boolean admit(Bucket sessionBucket, Bucket uidBucket) {
+        synchronized (uidBucket) {
+            long nowMs = getTimeMillis();
+            if (sessionBucket != null) {
+                sessionBucket.refill(mSessionRatePerSecond, mSessionBurst, nowMs);
+            }
+            uidBucket.refill(mUidRatePerSecond, mUidBurst, nowMs);
+
+            if (sessionBucket != null && sessionBucket.mTokens < 1) {
+                mRejectedBySessionCount.incrementAndGet();
+                return false;
+            }
+            if (uidBucket.mTokens < 1) {
+                mRejectedByUidCount.incrementAndGet();
+                return false;
+            }
+            if (sessionBucket != null) sessionBucket.mTokens--;
+            uidBucket.mTokens--;
+        }
+        mAdmittedCount.incrementAndGet();
+        return true;
+    }
+
+    private Bucket[] createBuckets(int burst) {
+        long nowMs = getTimeMillis();
+        Bucket[] buckets = new Bucket[REQUEST_TYPE_COUNT];
+        for (int i = 0; i < REQUEST_TYPE_COUNT; i++) buckets[i] = new Bucket(burst, nowMs);
+        return buckets;
+    }
+
+    /**
+     * @return The number of admitted requests.
+     */
+    public long getAdmittedCount() {
+        return mAdmittedCount.get();
+    }
+
+    /**
+     * @return The number of requests rejected because their session was over budget.
+     */
+    public long getRejectedBySessionCount() {
+        return mRejectedBySessionCount.get();
+    }
+
+    /**
+     * @return The number of requests rejected because their application was over budget.
+     */
+    public long getRejectedByUidCount() {
+        return mRejectedByUidCount.get();
+    }
+
+    @VisibleForTesting
+    long getTimeMillis() {
+        return SystemClock.elapsedRealtime();
+    }
+}
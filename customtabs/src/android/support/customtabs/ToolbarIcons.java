@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Prepares the icons sent to the browser for its toolbar.
+ * <p>
+ * Icons are downsampled to the largest size the toolbar displays, so that no more pixels than
+ * needed are parcelled into the Bundles crossing the binder. The downsampled icons are cached by
+ * their source {@link Bitmap} and its generation id, so that the same icon passed again is not
+ * scaled again, while an icon the client has drawn into since is. Icons small enough are used as
+ * they are and not cached.
+ */
+/* package */ final class ToolbarIcons {
+    /** Maximum height of a toolbar icon, see {@link CustomTabsIntent#KEY_ICON}. */
+    private static final int MAX_HEIGHT_DP = 24;
+    /** Maximum width of a toolbar icon, the toolbar allows icons up to a 2:1 aspect ratio. */
+    private static final int MAX_WIDTH_DP = 48;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** A downsampled icon, with the generation id of its source when it was downsampled. */
+    private static class PreparedIcon {
+        final int mSourceGenerationId;
+        final Bitmap mBitmap;
+
+        PreparedIcon(int sourceGenerationId, Bitmap bitmap) {
+            mSourceGenerationId = sourceGenerationId;
+            mBitmap = bitmap;
+        }
+    }
+
+    /** Downsampled icons, keyed by their source, guarded by the class. */
+    private static final Map<Bitmap, PreparedIcon> sPreparedIcons = new WeakHashMap<>();
+
+    private ToolbarIcons() {}
+
+    /**
+     * @param icon An icon provided by the client.
+     * @return The icon to put in the Bundle sent to the browser. This is the given icon if it is
+     *         small enough.
+     */
+    static Bitmap prepare(@NonNull Bitmap icon) {
+        float density = Resources.getSystem().getDisplayMetrics().density;
+        int maxWidth = Math.round(MAX_WIDTH_DP * density);
+        int maxHeight = Math.round(MAX_HEIGHT_DP * density);
+        if (icon.getWidth() <= maxWidth && icon.getHeight() <= maxHeight) return icon;
+
+        int generationId = icon.getGenerationId();
+        PreparedIcon prepared;
+        synchronized (ToolbarIcons.class) {
+            prepared = sPreparedIcons.get(icon);
+        }
+        if (prepared != null && prepared.mSourceGenerationId == generationId
+                && !prepared.mBitmap.isRecycled()) {
+            return prepared.mBitmap;
+        }
+
+        prepared = new PreparedIcon(generationId, downsample(icon, maxWidth, maxHeight));
+        synchronized (ToolbarIcons.class) {
+            sPreparedIcons.put(icon, prepared);
+        }
+        return prepared.mBitmap;
+    }
+
+    @VisibleForTesting
+    /* package */ static Bitmap downsample(Bitmap icon, int maxWidth, int maxHeight) {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        if (width <= maxWidth && height <= maxHeight) return icon;
+
+        float scale = Math.min((float) maxWidth / width, (float) maxHeight / height);
+        return Bitmap.createScaledBitmap(icon, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Reads every pixel, so it is only meant for icons already prepared.
+     *
+     * @return A 64-bit FNV-1a style hash of the dimensions and pixels of the given bitmap, or null
+     *         if its pixels cannot be read.
+     */
+    @VisibleForTesting
+    /* package */ static Long hashContent(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        long hash = FNV_OFFSET_BASIS;
+        hash = (hash ^ width) * FNV_PRIME;
+        hash = (hash ^ height) * FNV_PRIME;
+        int[] row = new int[width];
+        try {
+            for (int y = 0; y < height; y++) {
+                bitmap.getPixels(row, 0, width, 0, y, width, 1);
+                for (int pixel : row) hash = (hash ^ pixel) * FNV_PRIME;
+            }
+        } catch (IllegalStateException e) {
+            // Recycled or hardware bitmap.
+            return null;
+        }
+        return hash;
+    }
+}
@@ -30,7 +30,9 @@ import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class for utilities and convenience calls for opening a qualifying web page as a
@@ -123,6 +125,13 @@ public class TrustedWebUtils {
     public static final String ACTION_MANAGE_TRUSTED_WEB_ACTIVITY_DATA =
             "android.support.customtabs.action.ACTION_MANAGE_TRUSTED_WEB_ACTIVITY_DATA";
 
+    /**
+     * Cached results of {@link #warmupIsRequired}, to avoid a PackageManager lookup on every call.
+     * Chrome only gets updated to versions that need warmup less, so a stale entry at worst
+     * results in an unnecessary warmup.
+     */
+    private static final Map<String, Boolean> sWarmupIsRequired = new HashMap<>();
+
     private TrustedWebUtils() {}
 
     /**
@@ -236,7 +245,15 @@ public class TrustedWebUtils {
         if (!SUPPORTED_CHROME_PACKAGES.contains(packageName)) {
             return false;
         }
-        return getVersionCode(context, packageName) < NO_PREWARM_CHROME_VERSION_CODE;
+        synchronized (sWarmupIsRequired) {
+            Boolean warmupIsRequired = sWarmupIsRequired.get(packageName);
+            if (warmupIsRequired == null) {
+                warmupIsRequired =
+                        getVersionCode(context, packageName) < NO_PREWARM_CHROME_VERSION_CODE;
+                sWarmupIsRequired.put(packageName, warmupIsRequired);
+            }
+            return warmupIsRequired;
+        }
     }
 
     private static int getVersionCode(Context context, String packageName) {
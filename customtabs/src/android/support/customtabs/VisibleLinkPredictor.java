@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.AbsListView;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Predicts which links of a scrolling list are likely to be opened, and hints them through a
+ * {@link PrefetchScheduler}.
+ * <p>
+ * A link is scored by how long it has been on screen, and a link under the user's finger is
+ * considered the most likely one and hinted right away. The list reports what is on screen with
+ * {@link #onLinkVisible}, {@link #onLinkHidden} and {@link #onLinkTouched}, typically from a
+ * scroll listener. {@link #attachToListView} does this for an {@link AbsListView}; other
+ * containers such as a RecyclerView can call the methods from their own listeners.
+ * <p>
+ * While links are visible, the predictor re-scores them periodically. The rate of the resulting
+ * {@link CustomTabsSession#mayLaunchUrl} calls is bounded by the scheduler's budget.
+ * <p>
+ * This class should only be used on the UI thread.
+ */
+public class VisibleLinkPredictor {
+    /** Default interval between two re-scorings of the visible links. */
+    public static final long DEFAULT_UPDATE_INTERVAL_MS = 500;
+
+    /** Maximum number of links for which the time on screen is remembered. */
+    private static final int MAX_TRACKED_LINKS = 200;
+    /** Score given to a touched link, above anything reachable by time on screen. */
+    private static final float TOUCHED_SCORE = Float.MAX_VALUE;
+
+    /**
+     * Maps the positions of an {@link AbsListView} to the links they show.
+     */
+    public interface LinkResolver {
+        /**
+         * @param position The adapter position of an item.
+         * @return The link the item leads to, or null if it does not lead to a link.
+         */
+        @Nullable Uri getLink(int position);
+    }
+
+    private final PrefetchScheduler mScheduler;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateScheduled = false;
+            update();
+        }
+    };
+
+    /** Time each visible link appeared on screen. */
+    private final Map<Uri, Long> mVisibleSince = new HashMap<>();
+    /** Time each link spent on screen before it was last hidden, least recently seen first. */
+    private final LinkedHashMap<Uri, Long> mPastDwellTimeMs = new LinkedHashMap<>();
+    private long mUpdateIntervalMs = DEFAULT_UPDATE_INTERVAL_MS;
+    private boolean mUpdateScheduled;
+
+    /**
+     * @param scheduler The scheduler the predictions are sent to.
+     */
+    public VisibleLinkPredictor(@NonNull PrefetchScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Sets how often the visible links are re-scored while the list is on screen.
+     */
+    public void setUpdateInterval(long updateIntervalMs) {
+        mUpdateIntervalMs = updateIntervalMs;
+    }
+
+    /**
+     * Reports that an item leading to the given link is on screen.
+     */
+    public void onLinkVisible(@NonNull Uri url) {
+        if (mVisibleSince.containsKey(url)) return;
+        mVisibleSince.put(url, getCurrentTimeMs());
+        scheduleUpdate();
+    }
+
+    /**
+     * Reports that no item leading to the given link is on screen anymore.
+     */
+    public void onLinkHidden(@NonNull Uri url) {
+        Long visibleSince = mVisibleSince.remove(url);
+        if (visibleSince == null) return;
+
+        Long pastDwellTimeMs = mPastDwellTimeMs.remove(url);
+        long dwellTimeMs = getCurrentTimeMs() - visibleSince
+                + (pastDwellTimeMs == null ? 0 : pastDwellTimeMs);
+        mPastDwellTimeMs.put(url, dwellTimeMs);
+        if (mPastDwellTimeMs.size() > MAX_TRACKED_LINKS) {
+            Iterator<Uri> it = mPastDwellTimeMs.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reports that the user has started touching an item leading to the given link. The link is
+     * hinted immediately if the scheduler's budget allows it.
+     */
+    public void onLinkTouched(@NonNull Uri url) {
+        mScheduler.addCandidate(url, TOUCHED_SCORE);
+        mScheduler.flush();
+    }
+
+    /**
+     * Reports that the list is not on screen anymore, for instance because the hosting activity
+     * has been stopped. Stops the periodic updates.
+     */
+    public void onAllLinksHidden() {
+        for (Uri url : new HashSet<>(mVisibleSince.keySet())) onLinkHidden(url);
+        mHandler.removeCallbacks(mUpdateRunnable);
+        mUpdateScheduled = false;
+    }
+
+    /**
+     * Scores the visible links by their total time on screen and hints the best ones.
+     */
+    public void update() {
+        if (mVisibleSince.isEmpty()) return;
+        long now = getCurrentTimeMs();
+        for (Map.Entry<Uri, Long> entry : mVisibleSince.entrySet()) {
+            Long pastDwellTimeMs = mPastDwellTimeMs.get(entry.getKey());
+            long dwellTimeMs = now - entry.getValue()
+                    + (pastDwellTimeMs == null ? 0 : pastDwellTimeMs);
+            mScheduler.addCandidate(entry.getKey(), dwellTimeMs);
+        }
+        mScheduler.flush();
+        scheduleUpdate();
+    }
+
+    /**
+     * Tracks the links shown by the given list. This replaces the list's
+     * {@link AbsListView.OnScrollListener} and {@link View.OnTouchListener}.
+     *
+     * @param listView The list to track.
+     * @param resolver Maps the positions of the list to links.
+     */
+    public void attachToListView(@NonNull final AbsListView listView,
+            @NonNull final LinkResolver resolver) {
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE) update();
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                Set<Uri> visibleUrls = new HashSet<>();
+                for (int i = 0; i < visibleItemCount; i++) {
+                    Uri url = resolver.getLink(firstVisibleItem + i);
+                    if (url != null) visibleUrls.add(url);
+                }
+                for (Uri url : new HashSet<>(mVisibleSince.keySet())) {
+                    if (!visibleUrls.contains(url)) onLinkHidden(url);
+                }
+                for (Uri url : visibleUrls) onLinkVisible(url);
+            }
+        });
+        listView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (event.getActionMasked() != MotionEvent.ACTION_DOWN) return false;
+                int position = listView.pointToPosition((int) event.getX(), (int) event.getY());
+                if (position == AbsListView.INVALID_POSITION) return false;
+                Uri url = resolver.getLink(position);
+                if (url != null) onLinkTouched(url);
+                // Never consume the event, the list still has to handle it.
+                return false;
+            }
+        });
+    }
+
+    private void scheduleUpdate() {
+        if (mUpdateScheduled) return;
+        mUpdateScheduled = true;
+        mHandler.postDelayed(mUpdateRunnable, mUpdateIntervalMs);
+    }
+
+    @VisibleForTesting
+    /* package */ long getCurrentTimeMs() {
+        return SystemClock.uptimeMillis();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of which {@link CustomTabsService} processes have been warmed up, so that
+ * {@link CustomTabsClient#warmup(long)} makes at most one successful binder call per provider
+ * process.
+ * <p>
+ * A provider process is identified by the {@link IBinder} of its service: when the process dies
+ * and is restarted, the client receives a new binder and the provider is warmed up again.
+ * Concurrent warmup requests for the same provider wait for the call already in flight.
+ * <p>
+ * Binders are only referenced weakly, and the binder of a provider warmed up by a connection
+ * that has since been dropped can be collected while the provider process lives on. A provider
+ * warmed up less than {@link #RECENT_WARMUP_MS} ago is then still considered warm.
+ */
+/* package */ class WarmupManager {
+    /** How long a provider is considered warm when its binder is not known anymore. */
+    @VisibleForTesting
+    static final long RECENT_WARMUP_MS = 60000;
+
+    private static final WarmupManager sInstance = new WarmupManager();
+
+    private static class ProviderState {
+        boolean mWarmedUp;
+        boolean mInFlight;
+    }
+
+    private final Object mLock = new Object();
+    private final Map<IBinder, ProviderState> mStates = new WeakHashMap<>();
+    /** The binder of the last warmed up service of each provider package. */
+    private final Map<String, WeakReference<IBinder>> mWarmedUpBinders = new HashMap<>();
+    /** The time of the last successful warmup of each provider package. */
+    private final Map<String, Long> mLastWarmupTimesMs = new HashMap<>();
+
+    static WarmupManager getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    WarmupManager() {}
+
+    /**
+     * Warms up the given service, unless it or its process has already been warmed up.
+     *
+     * @param service     The service to warm up.
+     * @param packageName The package of the service.
+     * @param flags       Passed to {@link ICustomTabsService#warmup(long)}.
+     * @return Whether the service has been warmed up successfully, now or before.
+     */
+    boolean warmup(ICustomTabsService service, String packageName, long flags) {
+        IBinder binder = service.asBinder();
+        ProviderState state;
+        synchronized (mLock) {
+            state = mStates.get(binder);
+            if (state == null) {
+                state = new ProviderState();
+                mStates.put(binder, state);
+            }
+            boolean interrupted = false;
+            while (state.mInFlight) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (state.mWarmedUp) return true;
+            if (isWarmedUpLocked(packageName)) {
+                // A new binder to a process warmed up through an earlier one.
+                state.mWarmedUp = true;
+                mWarmedUpBinders.put(packageName, new WeakReference<>(binder));
+                return true;
+            }
+            state.mInFlight = true;
+        }
+
+        boolean success = false;
+        try {
+            success = service.warmup(flags);
+        } catch (RemoteException e) {
+            success = false;
+        } finally {
+            synchronized (mLock) {
+                state.mInFlight = false;
+                if (success) {
+                    state.mWarmedUp = true;
+                    mWarmedUpBinders.put(packageName, new WeakReference<>(binder));
+                    mLastWarmupTimesMs.put(packageName, getTimeMillis());
+                }
+                mLock.notifyAll();
+            }
+        }
+        return success;
+    }
+
+    /**
+     * @return Whether the provider in the given package has been warmed up and its process is
+     *         still alive, or was warmed up recently if this is not known.
+     */
+    boolean isWarmedUp(String packageName) {
+        synchronized (mLock) {
+            return isWarmedUpLocked(packageName);
+        }
+    }
+
+    private boolean isWarmedUpLocked(String packageName) {
+        WeakReference<IBinder> binderReference = mWarmedUpBinders.get(packageName);
+        IBinder binder = binderReference == null ? null : binderReference.get();
+        if (binder != null) {
+            if (binder.isBinderAlive()) return true;
+            // The provider process has died since it was warmed up.
+            mWarmedUpBinders.remove(packageName);
+            mLastWarmupTimesMs.remove(packageName);
+            return false;
+        }
+        Long lastWarmupTimeMs = mLastWarmupTimesMs.get(packageName);
+        return lastWarmupTimeMs != null && getTimeMillis() - lastWarmupTimeMs < RECENT_WARMUP_MS;
+    }
+
+    @VisibleForTesting
+    long getTimeMillis() {
+        return SystemClock.elapsedRealtime();
+    }
+}
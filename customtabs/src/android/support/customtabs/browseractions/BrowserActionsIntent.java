@@ -28,6 +28,7 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.RestrictTo;
 import android.support.annotation.VisibleForTesting;
+import android.support.customtabs.SessionIdCache;
 import android.support.v4.content.ContextCompat;
 import android.text.TextUtils;
 
@@ -273,7 +274,7 @@ public class BrowserActionsIntent {
             mIntent.setData(mUri);
             mIntent.putExtra(EXTRA_TYPE, mType);
             mIntent.putParcelableArrayListExtra(EXTRA_MENU_ITEMS, mMenuItems);
-            PendingIntent pendingIntent = PendingIntent.getActivity(mContext, 0, new Intent(), 0);
+            PendingIntent pendingIntent = SessionIdCache.getPendingIntent(mContext, 0);
             mIntent.putExtra(EXTRA_APP_ID, pendingIntent);
             if (mOnItemSelectedPendingIntent != null) {
                 mIntent.putExtra(
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests for {@link AsyncCustomTabsService}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AsyncCustomTabsServiceTest {
+    private static final int EXECUTOR_CAPACITY = 2;
+    private static final Uri ORIGIN = Uri.parse("https://www.example.com");
+
+    /** Runs the requests when asked to, and rejects them beyond its capacity. */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> mRequests = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable request) {
+            if (mRequests.size() >= EXECUTOR_CAPACITY) throw new RejectedExecutionException();
+            mRequests.add(request);
+        }
+
+        void runAll() {
+            while (!mRequests.isEmpty()) mRequests.remove(0).run();
+        }
+    }
+
+    private static class TestAsyncCustomTabsService extends AsyncCustomTabsService {
+        final List<String> mMessages = new ArrayList<>();
+
+        TestAsyncCustomTabsService(Executor executor) {
+            super(executor, EXECUTOR_CAPACITY);
+        }
+
+        @Override
+        protected boolean warmup(long flags) {
+            return true;
+        }
+
+        @Override
+        protected boolean newSession(CustomTabsSessionToken sessionToken) {
+            return true;
+        }
+
+        @Override
+        protected Bundle extraCommand(String commandName, Bundle args) {
+            return null;
+        }
+
+        @Override
+        protected boolean requestPostMessageChannel(CustomTabsSessionToken sessionToken,
+                Uri postMessageOrigin) {
+            return true;
+        }
+
+        @Override
+        protected void onMayLaunchUrl(CustomTabsSessionToken sessionToken, Uri url,
+                Bundle extras, List<Bundle> otherLikelyBundles) {}
+
+        @Override
+        protected void onUpdateVisuals(CustomTabsSessionToken sessionToken, Bundle bundle) {}
+
+        @Override
+        protected void onPostMessage(CustomTabsSessionToken sessionToken, String message,
+                Bundle extras) {
+            mMessages.add(message);
+        }
+
+        @Override
+        protected boolean onValidateRelationship(CustomTabsSessionToken sessionToken,
+                int relation, Uri origin, Bundle extras) {
+            return true;
+        }
+    }
+
+    private final List<Boolean> mValidationResults = new ArrayList<>();
+    private final ICustomTabsCallback mCallback = new CustomTabsSessionToken.MockCallback() {
+        @Override
+        public void onRelationshipValidationResult(int relation, Uri requestedOrigin,
+                boolean result, Bundle extras) {
+            mValidationResults.add(result);
+        }
+    };
+    private ManualExecutor mExecutor;
+    private TestAsyncCustomTabsService mService;
+    private ICustomTabsService mBinder;
+
+    @Before
+    public void setup() throws RemoteException {
+        mExecutor = new ManualExecutor();
+        mService = new TestAsyncCustomTabsService(mExecutor);
+        mBinder = ICustomTabsService.Stub.asInterface(mService.onBind(null));
+        mBinder.newSession(mCallback);
+    }
+
+    @Test
+    public void testValidationResultIsSentOnceHandled() throws RemoteException {
+        assertTrue(mBinder.validateRelationship(
+                mCallback, CustomTabsService.RELATION_USE_AS_ORIGIN, ORIGIN, null));
+        assertTrue(mValidationResults.isEmpty());
+
+        mExecutor.runAll();
+        assertEquals(Arrays.asList(true), mValidationResults);
+    }
+
+    @Test
+    public void testRequestsAreRejectedWhenSaturated() throws RemoteException {
+        assertTrue(mBinder.mayLaunchUrl(mCallback, ORIGIN, null, null));
+        assertTrue(mBinder.mayLaunchUrl(mCallback, ORIGIN, null, null));
+        assertFalse(mBinder.mayLaunchUrl(mCallback, ORIGIN, null, null));
+
+        mExecutor.runAll();
+        assertTrue(mBinder.mayLaunchUrl(mCallback, ORIGIN, null, null));
+    }
+
+    @Test
+    public void testMessagesAreHandledInOrder() throws RemoteException {
+        assertEquals(CustomTabsService.RESULT_SUCCESS,
+                mBinder.postMessage(mCallback, "message1", null));
+        assertEquals(CustomTabsService.RESULT_SUCCESS,
+                mBinder.postMessage(mCallback, "message2", null));
+        assertEquals(CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR,
+                mBinder.postMessage(mCallback, "message3", null));
+        // The messages of a session take a single slot of the executor.
+        assertEquals(1, mExecutor.mRequests.size());
+
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("message1", "message2"), mService.mMessages);
+    }
+
+    @Test
+    public void testOnlyTheRejectedMessageIsDropped() throws RemoteException {
+        assertTrue(mBinder.mayLaunchUrl(mCallback, ORIGIN, null, null));
+        assertTrue(mBinder.mayLaunchUrl(mCallback, ORIGIN, null, null));
+        assertEquals(CustomTabsService.RESULT_FAILURE_MESSAGING_ERROR,
+                mBinder.postMessage(mCallback, "message1", null));
+
+        mExecutor.runAll();
+        assertEquals(CustomTabsService.RESULT_SUCCESS,
+                mBinder.postMessage(mCallback, "message2", null));
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("message2"), mService.mMessages);
+    }
+
+    @Test
+    public void testDrainedQueuesAreRemoved() throws RemoteException {
+        ICustomTabsCallback unregisteredCallback = new CustomTabsSessionToken.MockCallback();
+        mBinder.postMessage(mCallback, "message1", null);
+        mBinder.postMessage(unregisteredCallback, "message2", null);
+        assertEquals(2, mService.getQueuedSessionCount());
+
+        mExecutor.runAll();
+        assertEquals(0, mService.getQueuedSessionCount());
+        // A new queue is created for the next message.
+        assertEquals(CustomTabsService.RESULT_SUCCESS,
+                mBinder.postMessage(mCallback, "message3", null));
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("message1", "message2", "message3"), mService.mMessages);
+    }
+}
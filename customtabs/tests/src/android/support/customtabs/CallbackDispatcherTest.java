@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link CallbackDispatcher}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CallbackDispatcherTest {
+    private final List<Runnable> mTasks = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    private final List<IBinder> mCutOffClients = new ArrayList<>();
+    private final CallbackDispatcher.CutOffListener mCutOffListener =
+            new CallbackDispatcher.CutOffListener() {
+        @Override
+        public void onCutOff(IBinder callbackBinder) {
+            synchronized (mCutOffClients) {
+                mCutOffClients.add(callbackBinder);
+            }
+        }
+    };
+
+    private static class RecordingCallback extends CustomTabsSessionToken.MockCallback {
+        final List<String> mEvents = new ArrayList<>();
+        final List<Bundle> mExtras = new ArrayList<>();
+
+        @Override
+        public void onNavigationEvent(int navigationEvent, Bundle extras) {
+            mEvents.add("navigation " + navigationEvent);
+        }
+
+        @Override
+        public void onPostMessage(String message, Bundle extras) {
+            mEvents.add(message);
+            mExtras.add(extras);
+        }
+    }
+
+    private void runTasks() {
+        while (!mTasks.isEmpty()) mTasks.remove(0).run();
+    }
+
+    @Test
+    public void testEventsAreSentInOrderAndCoalesced() {
+        RecordingCallback callback = new RecordingCallback();
+        CallbackDispatcher dispatcher =
+                new CallbackDispatcher(callback, mExecutor, 10000, mCutOffListener);
+
+        dispatcher.onNavigationEvent(CustomTabsCallback.NAVIGATION_STARTED, null);
+        dispatcher.onPostMessage("message1", null);
+        dispatcher.onNavigationEvent(CustomTabsCallback.NAVIGATION_FINISHED, null);
+        dispatcher.onNavigationEvent(CustomTabsCallback.TAB_SHOWN, null);
+        dispatcher.onPostMessage("message2", null);
+        assertTrue(callback.mEvents.isEmpty());
+        assertEquals(1, mTasks.size());
+
+        runTasks();
+        assertEquals(Arrays.asList("message1",
+                "navigation " + CustomTabsCallback.NAVIGATION_FINISHED,
+                "navigation " + CustomTabsCallback.TAB_SHOWN, "message2"), callback.mEvents);
+        assertEquals(4, dispatcher.getSentEventCount());
+        assertEquals(1, dispatcher.getCoalescedEventCount());
+    }
+
+    @Test
+    public void testOldestNavigationEventIsDroppedWhenFull() {
+        RecordingCallback callback = new RecordingCallback();
+        CallbackDispatcher dispatcher =
+                new CallbackDispatcher(callback, mExecutor, 10000, mCutOffListener);
+
+        dispatcher.onNavigationEvent(CustomTabsCallback.NAVIGATION_STARTED, null);
+        int count = CallbackDispatcher.MAX_PENDING_EVENTS;
+        for (int i = 0; i < count; i++) dispatcher.onPostMessage("message" + i, null);
+        runTasks();
+
+        assertEquals(count, callback.mEvents.size());
+        assertEquals("message0", callback.mEvents.get(0));
+        assertEquals(1, dispatcher.getDroppedEventCount());
+        assertFalse(dispatcher.isCutOff());
+    }
+
+    @Test
+    public void testClientIsCutOffWhenFullOfOtherEvents() {
+        RecordingCallback callback = new RecordingCallback();
+        CallbackDispatcher dispatcher =
+                new CallbackDispatcher(callback, mExecutor, 10000, mCutOffListener);
+
+        int count = CallbackDispatcher.MAX_PENDING_EVENTS + 2;
+        for (int i = 0; i < count; i++) dispatcher.onPostMessage("message" + i, null);
+        runTasks();
+
+        // Messages cannot be dropped silently, so none is sent after the overflow.
+        assertTrue(dispatcher.isCutOff());
+        assertTrue(callback.mEvents.isEmpty());
+        assertEquals(count, dispatcher.getDroppedEventCount());
+        assertEquals(Arrays.asList(callback.asBinder()), mCutOffClients);
+    }
+
+    @Test
+    public void testClientIsCutOffWhenNoThreadIsAvailable() {
+        RecordingCallback callback = new RecordingCallback();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(callback, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        }, 10000, mCutOffListener);
+
+        dispatcher.onPostMessage("message1", null);
+        assertTrue(dispatcher.isCutOff());
+        assertEquals(1, dispatcher.getDroppedEventCount());
+        assertEquals(Arrays.asList(callback.asBinder()), mCutOffClients);
+    }
+
+    @Test
+    public void testExtrasAreCopied() {
+        RecordingCallback callback = new RecordingCallback();
+        CallbackDispatcher dispatcher =
+                new CallbackDispatcher(callback, mExecutor, 10000, mCutOffListener);
+
+        Bundle extras = new Bundle();
+        extras.putString("key", "value1");
+        dispatcher.onPostMessage("message1", extras);
+        extras.putString("key", "value2");
+        runTasks();
+
+        assertEquals("value1", callback.mExtras.get(0).getString("key"));
+    }
+
+    @Test
+    public void testDrainRecoversFromRuntimeException() {
+        RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public void onPostMessage(String message, Bundle extras) {
+                if ("message1".equals(message)) throw new IllegalStateException();
+                super.onPostMessage(message, extras);
+            }
+        };
+        CallbackDispatcher dispatcher =
+                new CallbackDispatcher(callback, mExecutor, 10000, mCutOffListener);
+
+        dispatcher.onPostMessage("message1", null);
+        try {
+            runTasks();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(0, dispatcher.getSentEventCount());
+
+        dispatcher.onPostMessage("message2", null);
+        assertEquals(1, mTasks.size());
+        runTasks();
+        assertEquals(Arrays.asList("message2"), callback.mEvents);
+        assertEquals(1, dispatcher.getSentEventCount());
+        assertFalse(dispatcher.isCutOff());
+    }
+
+    @Test
+    public void testStalledClientIsCutOff() throws InterruptedException {
+        final CountDownLatch called = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public void onPostMessage(String message, Bundle extras) {
+                super.onPostMessage(message, extras);
+                called.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        CallbackDispatcher dispatcher = new CallbackDispatcher(
+                callback, Executors.newSingleThreadExecutor(), 10, mCutOffListener);
+
+        dispatcher.onPostMessage("message1", null);
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+
+        // Cut off once the stall timeout has passed, at the latest when the next event is fired.
+        Thread.sleep(50);
+        dispatcher.onPostMessage("message2", null);
+        assertTrue(dispatcher.isCutOff());
+        assertEquals(1, dispatcher.getDroppedEventCount());
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                synchronized (mCutOffClients) {
+                    return mCutOffClients.size() == 1;
+                }
+            }
+        });
+        assertSame(callback.asBinder(), mCutOffClients.get(0));
+
+        release.countDown();
+        dispatcher.onPostMessage("message3", null);
+        assertEquals(Arrays.asList("message1"), callback.mEvents);
+    }
+
+    @Test
+    public void testFrozenClientDoesNotTakeTheThreadOfOthers() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        RecordingCallback frozenCallback = new RecordingCallback() {
+            @Override
+            public void onPostMessage(String message, Bundle extras) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final CountDownLatch received = new CountDownLatch(1);
+        RecordingCallback healthyCallback = new RecordingCallback() {
+            @Override
+            public void onPostMessage(String message, Bundle extras) {
+                received.countDown();
+            }
+        };
+        // A single thread, taken by the frozen client.
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(4));
+        CallbackDispatcher frozen =
+                new CallbackDispatcher(frozenCallback, pool, 50, mCutOffListener);
+        CallbackDispatcher healthy =
+                new CallbackDispatcher(healthyCallback, pool, 50, mCutOffListener);
+
+        frozen.onPostMessage("message1", null);
+        healthy.onPostMessage("message2", null);
+
+        // The frozen client is cut off without any further event, and its thread replaced.
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertTrue(frozen.isCutOff());
+        assertFalse(healthy.isCutOff());
+        assertEquals(2, pool.getCorePoolSize());
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                synchronized (mCutOffClients) {
+                    return mCutOffClients.size() == 1;
+                }
+            }
+        });
+        assertSame(frozenCallback.asBinder(), mCutOffClients.get(0));
+
+        // The thread is given back once the frozen call returns.
+        release.countDown();
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                return pool.getCorePoolSize() == 1;
+            }
+        });
+        pool.shutdown();
+    }
+}
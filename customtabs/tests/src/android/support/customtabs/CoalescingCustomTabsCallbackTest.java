@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link CoalescingCustomTabsCallback}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CoalescingCustomTabsCallbackTest {
+    // Long enough for all the events of a test to land in a single batch.
+    private static final long BATCH_WINDOW_MS = 200;
+
+    private final List<Integer> mNavigationEvents =
+            Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<String> mExtraCallbacks =
+            Collections.synchronizedList(new ArrayList<String>());
+    private CoalescingCustomTabsCallback mCallback;
+
+    @Before
+    public void setup() {
+        mCallback = new CoalescingCustomTabsCallback(new CustomTabsCallback() {
+            @Override
+            public void onNavigationEvent(int navigationEvent, Bundle extras) {
+                mNavigationEvents.add(navigationEvent);
+            }
+
+            @Override
+            public void extraCallback(String callbackName, Bundle args) {
+                mExtraCallbacks.add(callbackName);
+            }
+        }, BATCH_WINDOW_MS);
+    }
+
+    @Test
+    public void testSupersededEventsAreCoalesced() {
+        mCallback.onNavigationEvent(CustomTabsCallback.TAB_SHOWN, null);
+        mCallback.onNavigationEvent(CustomTabsCallback.NAVIGATION_STARTED, null);
+        mCallback.extraCallback("extra", null);
+        mCallback.onNavigationEvent(CustomTabsCallback.NAVIGATION_FINISHED, null);
+        mCallback.onNavigationEvent(CustomTabsCallback.TAB_HIDDEN, null);
+
+        PollingCheck.waitFor(1000, new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                return mCallback.getDeliveredBatchCount() == 1;
+            }
+        });
+
+        assertEquals(Arrays.asList(CustomTabsCallback.NAVIGATION_FINISHED,
+                CustomTabsCallback.TAB_HIDDEN), mNavigationEvents);
+        assertEquals(Collections.singletonList("extra"), mExtraCallbacks);
+        assertEquals(5, mCallback.getReceivedEventCount());
+        assertEquals(2, mCallback.getCoalescedEventCount());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link java.util.concurrent.Executor} delivery of
+ * {@link CustomTabsCallbackWrapper}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CustomTabsCallbackWrapperTest {
+    private static final String THREAD_NAME = "CallbackExecutor";
+
+    private static class RecordingCallback extends CustomTabsCallback {
+        final List<String> mEvents = new ArrayList<>();
+        final List<String> mThreads = new ArrayList<>();
+
+        private void record(String event) {
+            mEvents.add(event);
+            mThreads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void onNavigationEvent(int navigationEvent, Bundle extras) {
+            record("navigation " + navigationEvent);
+        }
+
+        @Override
+        public void extraCallback(String callbackName, Bundle args) {
+            record(callbackName);
+        }
+
+        @Override
+        public void onMessageChannelReady(Bundle extras) {
+            record("ready");
+        }
+
+        @Override
+        public void onPostMessage(String message, Bundle extras) {
+            record(message);
+        }
+
+        @Override
+        public void onRelationshipValidationResult(int relation, Uri requestedOrigin,
+                boolean result, Bundle extras) {
+            record("relationship " + result);
+        }
+    }
+
+    @Test
+    public void testCallbacksRunOnExecutorInOrder() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, THREAD_NAME);
+            }
+        });
+        RecordingCallback callback = new RecordingCallback();
+        CustomTabsCallbackWrapper wrapper = new CustomTabsCallbackWrapper(callback, executor);
+
+        wrapper.onNavigationEvent(CustomTabsCallback.NAVIGATION_STARTED, null);
+        wrapper.extraCallback("extra", null);
+        wrapper.onMessageChannelReady(null);
+        wrapper.onPostMessage("message", null);
+        wrapper.onRelationshipValidationResult(CustomTabsService.RELATION_HANDLE_ALL_URLS,
+                Uri.parse("https://www.example.com"), true, null);
+        wrapper.onNavigationEvent(CustomTabsCallback.NAVIGATION_FINISHED, null);
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("navigation " + CustomTabsCallback.NAVIGATION_STARTED,
+                "extra", "ready", "message", "relationship true",
+                "navigation " + CustomTabsCallback.NAVIGATION_FINISHED), callback.mEvents);
+        for (String thread : callback.mThreads) assertEquals(THREAD_NAME, thread);
+    }
+}
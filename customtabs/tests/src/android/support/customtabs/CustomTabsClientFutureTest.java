@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.app.Instrumentation;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for {@link CustomTabsClientFuture}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CustomTabsClientFutureTest {
+    private static final String PACKAGE_NAME = TestBindingContext.PACKAGE_NAME;
+    private static final long TIMEOUT_MS = 5000;
+
+    private Instrumentation mInstrumentation;
+    private TestBindingContext mContext;
+
+    @Before
+    public void setup() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = new TestBindingContext(InstrumentationRegistry.getTargetContext());
+    }
+
+    private void connectOnMainThread() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mContext.connect(new TestCustomTabsServiceBinder());
+            }
+        });
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        CustomTabsClientFuture future =
+                CustomTabsClient.bindCustomTabsServiceAsync(mContext, PACKAGE_NAME, TIMEOUT_MS);
+        assertFalse(future.isDone());
+
+        connectOnMainThread();
+        assertTrue(future.isDone());
+        assertNotNull(future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotNull(future.get());
+        assertEquals(0, mContext.getUnbindCount());
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        CustomTabsClientFuture future =
+                CustomTabsClient.bindCustomTabsServiceAsync(mContext, PACKAGE_NAME, 10);
+        try {
+            future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        } catch (TimeoutException e) {
+            fail();
+        }
+        mInstrumentation.waitForIdleSync();
+        // The binding is dropped once the future has timed out.
+        assertEquals(1, mContext.getUnbindCount());
+        assertTrue(mContext.getConnections().isEmpty());
+    }
+
+    @Test
+    public void testUnbind() throws Exception {
+        CustomTabsClientFuture future =
+                CustomTabsClient.bindCustomTabsServiceAsync(mContext, PACKAGE_NAME, TIMEOUT_MS);
+        connectOnMainThread();
+        future.get();
+
+        future.unbind();
+        future.unbind();
+        assertEquals(1, mContext.getUnbindCount());
+        assertTrue(mContext.getConnections().isEmpty());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CustomTabsClientFuture future =
+                CustomTabsClient.bindCustomTabsServiceAsync(mContext, PACKAGE_NAME, TIMEOUT_MS);
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(future.cancel(false));
+        assertEquals(1, mContext.getUnbindCount());
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testFailedBind() throws InterruptedException {
+        mContext.setBindResult(false);
+        CustomTabsClientFuture future =
+                CustomTabsClient.bindCustomTabsServiceAsync(mContext, PACKAGE_NAME, TIMEOUT_MS);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(mContext.getConnections().isEmpty());
+    }
+
+    @Test
+    public void testGetOnMainThreadThrows() {
+        final CustomTabsClientFuture future =
+                CustomTabsClient.bindCustomTabsServiceAsync(mContext, PACKAGE_NAME, TIMEOUT_MS);
+        final boolean[] thrown = new boolean[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.get();
+                } catch (IllegalStateException e) {
+                    thrown[0] = true;
+                } catch (InterruptedException | ExecutionException e) {
+                    // Not expected, checked below.
+                }
+            }
+        });
+        assertTrue(thrown[0]);
+        future.cancel(false);
+    }
+}
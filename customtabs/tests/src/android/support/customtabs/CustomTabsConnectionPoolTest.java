@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link CustomTabsConnectionPool}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CustomTabsConnectionPoolTest {
+    private static final String PACKAGE_NAME = TestBindingContext.PACKAGE_NAME;
+
+    private Instrumentation mInstrumentation;
+    private TestBindingContext mContext;
+    private CustomTabsConnectionPool mPool;
+
+    private static class CountingLeaseCallback extends CustomTabsConnectionPool.LeaseCallback {
+        int mReadyCount;
+        int mDisconnectedCount;
+
+        @Override
+        public void onClientReady(@NonNull CustomTabsClient client) {
+            mReadyCount++;
+        }
+
+        @Override
+        public void onClientDisconnected() {
+            mDisconnectedCount++;
+        }
+    }
+
+    @Before
+    public void setup() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = new TestBindingContext(InstrumentationRegistry.getTargetContext());
+        mPool = new CustomTabsConnectionPool(mContext);
+        mPool.setIdleTimeout(0);
+    }
+
+    @Test
+    public void testLeasesShareOneBinding() {
+        final CountingLeaseCallback callback1 = new CountingLeaseCallback();
+        final CountingLeaseCallback callback2 = new CountingLeaseCallback();
+        final CountingLeaseCallback callback3 = new CountingLeaseCallback();
+        final CustomTabsConnectionPool.Lease[] leases = new CustomTabsConnectionPool.Lease[3];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                leases[0] = mPool.acquire(PACKAGE_NAME, callback1);
+                leases[1] = mPool.acquire(PACKAGE_NAME, callback2);
+                assertNull(leases[0].getClient());
+
+                mContext.connect(new TestCustomTabsServiceBinder());
+                assertNotNull(leases[0].getClient());
+                // Already connected, so the new lease is ready immediately.
+                leases[2] = mPool.acquire(PACKAGE_NAME, callback3);
+
+                mContext.disconnect();
+            }
+        });
+        assertEquals(1, mContext.getBindCount());
+        assertEquals(1, callback1.mReadyCount);
+        assertEquals(1, callback2.mReadyCount);
+        assertEquals(1, callback3.mReadyCount);
+        assertEquals(1, callback1.mDisconnectedCount);
+        assertNull(leases[2].getClient());
+        assertTrue(mPool.isBound(PACKAGE_NAME));
+    }
+
+    @Test
+    public void testUnbindsWhenLastLeaseIsReleased() {
+        final CustomTabsConnectionPool.Lease[] leases = new CustomTabsConnectionPool.Lease[2];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                leases[0] = mPool.acquire(PACKAGE_NAME, new CountingLeaseCallback());
+                leases[1] = mPool.acquire(PACKAGE_NAME, new CountingLeaseCallback());
+                leases[0].release();
+                // Releasing twice does not release the other lease.
+                leases[0].release();
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+        assertTrue(mPool.isBound(PACKAGE_NAME));
+        assertEquals(0, mContext.getUnbindCount());
+
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                leases[1].release();
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+        assertFalse(mPool.isBound(PACKAGE_NAME));
+        assertEquals(1, mContext.getUnbindCount());
+        assertTrue(mContext.getConnections().isEmpty());
+    }
+
+    @Test
+    public void testAcquireDuringIdleTimeoutKeepsBinding() throws InterruptedException {
+        mPool.setIdleTimeout(50);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mPool.acquire(PACKAGE_NAME, new CountingLeaseCallback()).release();
+                mPool.acquire(PACKAGE_NAME, new CountingLeaseCallback());
+            }
+        });
+        Thread.sleep(100);
+        mInstrumentation.waitForIdleSync();
+        assertTrue(mPool.isBound(PACKAGE_NAME));
+        assertEquals(1, mContext.getBindCount());
+        assertEquals(0, mContext.getUnbindCount());
+    }
+
+    @Test
+    public void testFailedBind() {
+        mContext.setBindResult(false);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertNull(mPool.acquire(PACKAGE_NAME, new CountingLeaseCallback()));
+            }
+        });
+        assertFalse(mPool.isBound(PACKAGE_NAME));
+        assertTrue(mContext.getConnections().isEmpty());
+    }
+}
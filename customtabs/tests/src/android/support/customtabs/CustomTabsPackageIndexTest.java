@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link CustomTabsPackageIndex}, counting the {@link android.content.pm.PackageManager}
+ * queries it performs.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CustomTabsPackageIndexTest {
+    private static final String DEFAULT_BROWSER = "com.example.default";
+    private static final String OTHER_BROWSER = "com.example.other";
+    private static final String NOT_A_BROWSER = "com.example.notabrowser";
+    private static final List<String> CANDIDATES =
+            Arrays.asList(NOT_A_BROWSER, OTHER_BROWSER, DEFAULT_BROWSER);
+    private static final int LOOKUPS = 100;
+
+    private CountingResolver mResolver;
+    private CustomTabsPackageIndex mIndex;
+
+    @Before
+    public void setup() {
+        mResolver = new CountingResolver();
+        mResolver.mProviders.add(DEFAULT_BROWSER);
+        mResolver.mProviders.add(OTHER_BROWSER);
+        mIndex = new CustomTabsPackageIndex(mResolver);
+    }
+
+    @Test
+    public void testRepeatedLookupsQueryOnce() {
+        // The first lookup queries the providers once, later ones do not query at all.
+        assertEquals(OTHER_BROWSER, mIndex.getPackageName(CANDIDATES, true));
+        assertEquals(1, mResolver.mQueryCount);
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(OTHER_BROWSER, mIndex.getPackageName(CANDIDATES, true));
+        }
+        assertEquals(1, mResolver.mQueryCount);
+
+        // The default VIEW handler is resolved once as well.
+        assertEquals(DEFAULT_BROWSER, mIndex.getPackageName(CANDIDATES, false));
+        assertEquals(2, mResolver.mQueryCount);
+        for (int i = 0; i < LOOKUPS; i++) {
+            assertEquals(DEFAULT_BROWSER, mIndex.getPackageName(CANDIDATES, false));
+        }
+        assertEquals(2, mResolver.mQueryCount);
+    }
+
+    @Test
+    public void testPackageRemoved() {
+        assertEquals(DEFAULT_BROWSER, mIndex.getPackageName(CANDIDATES, false));
+
+        mResolver.mProviders.remove(DEFAULT_BROWSER);
+        mIndex.onPackageChanged(DEFAULT_BROWSER, true);
+        assertEquals(OTHER_BROWSER, mIndex.getPackageName(CANDIDATES, false));
+
+        mResolver.mProviders.remove(OTHER_BROWSER);
+        mIndex.onPackageChanged(OTHER_BROWSER, true);
+        assertNull(mIndex.getPackageName(CANDIDATES, false));
+    }
+
+    @Test
+    public void testPackageAddedIsResolvedIncrementally() {
+        assertEquals(OTHER_BROWSER, mIndex.getPackageName(CANDIDATES, true));
+        int queries = mResolver.mQueryCount;
+
+        mResolver.mProviders.add(NOT_A_BROWSER);
+        mIndex.onPackageChanged(NOT_A_BROWSER, false);
+        assertEquals(NOT_A_BROWSER, mIndex.getPackageName(CANDIDATES, true));
+        // Only the changed package has been resolved again.
+        assertEquals(queries + 1, mResolver.mQueryCount);
+    }
+
+    @Test
+    public void testInvalidate() {
+        mIndex.getPackageName(CANDIDATES, false);
+        assertEquals(2, mResolver.mQueryCount);
+
+        mIndex.invalidate();
+        mIndex.getPackageName(CANDIDATES, false);
+        assertEquals(4, mResolver.mQueryCount);
+        mIndex.getPackageName(CANDIDATES, false);
+        assertEquals(4, mResolver.mQueryCount);
+    }
+
+    @Test
+    public void testPackageChangeInvalidatesDefaultHandler() {
+        mIndex.getPackageName(CANDIDATES, false);
+        assertEquals(2, mResolver.mQueryCount);
+
+        // The changed package is resolved again, and so is the default VIEW handler, but the
+        // full list of providers is not queried again.
+        mIndex.onPackageChanged(OTHER_BROWSER, false);
+        assertEquals(3, mResolver.mQueryCount);
+        assertEquals(DEFAULT_BROWSER, mIndex.getPackageName(CANDIDATES, false));
+        assertEquals(4, mResolver.mQueryCount);
+        mIndex.getPackageName(CANDIDATES, false);
+        assertEquals(4, mResolver.mQueryCount);
+    }
+
+    private static class CountingResolver implements CustomTabsPackageIndex.Resolver {
+        final Set<String> mProviders = new HashSet<>();
+        int mQueryCount;
+
+        @Override
+        public @Nullable String resolveDefaultViewHandler() {
+            mQueryCount++;
+            return DEFAULT_BROWSER;
+        }
+
+        @Override
+        public @NonNull List<String> queryCustomTabsProviders() {
+            mQueryCount++;
+            return new ArrayList<>(mProviders);
+        }
+
+        @Override
+        public boolean supportsCustomTabs(String packageName) {
+            mQueryCount++;
+            return mProviders.contains(packageName);
+        }
+    }
+}
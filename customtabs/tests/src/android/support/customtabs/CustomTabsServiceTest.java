@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the session handling of the {@link CustomTabsService} binder.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CustomTabsServiceTest {
+    private final List<CustomTabsSessionToken> mTokens = new ArrayList<>();
+    private TestCustomTabsService mService;
+    private ICustomTabsService mBinder;
+
+    @Before
+    public void setup() {
+        mService = new TestCustomTabsService() {
+            @Override
+            protected int postMessage(
+                    CustomTabsSessionToken sessionToken, String message, Bundle extras) {
+                mTokens.add(sessionToken);
+                return RESULT_SUCCESS;
+            }
+        };
+        mBinder = ICustomTabsService.Stub.asInterface(mService.onBind(null));
+    }
+
+    @Test
+    public void testKnownSessionsReuseTheirToken() throws RemoteException {
+        ICustomTabsCallback callback = new CustomTabsSessionToken.MockCallback();
+        assertTrue(mBinder.newSession(callback));
+        assertEquals(1, mService.getSessionCount());
+
+        mBinder.postMessage(callback, "message1", null);
+        mBinder.postMessage(callback, "message2", new Bundle());
+        assertSame(mTokens.get(0), mTokens.get(1));
+        assertSame(mTokens.get(0), mService.getSessions().iterator().next());
+    }
+
+    @Test
+    public void testSessionDyingWhileCreatedIsNotKept() throws RemoteException {
+        ICustomTabsCallback callback = new CustomTabsSessionToken.MockCallback() {
+            @Override
+            public void linkToDeath(DeathRecipient recipient, int flags) {
+                // The client dies right after the recipient is linked.
+                recipient.binderDied();
+            }
+        };
+        mBinder.newSession(callback);
+        assertEquals(0, mService.getSessionCount());
+    }
+
+    @Test
+    public void testRequestsOverBudgetAreRejected() throws RemoteException {
+        ICustomTabsCallback callback = new CustomTabsSessionToken.MockCallback();
+        mBinder.newSession(callback);
+        mService.setAdmissionPolicy(new TokenBucketAdmissionPolicy(0, 1, 0, 1));
+
+        assertEquals(CustomTabsService.RESULT_SUCCESS,
+                mBinder.postMessage(callback, "message1", null));
+        assertEquals(CustomTabsService.RESULT_FAILURE_DISALLOWED,
+                mBinder.postMessage(callback, "message2", null));
+        assertEquals(1, mTokens.size());
+    }
+
+    @Test
+    public void testUnknownSessionsGetNewTokens() throws RemoteException {
+        ICustomTabsCallback callback = new CustomTabsSessionToken.MockCallback();
+        mBinder.postMessage(callback, "message1", null);
+        mBinder.postMessage(callback, "message2", null);
+        assertNotSame(mTokens.get(0), mTokens.get(1));
+        assertEquals(mTokens.get(0), mTokens.get(1));
+    }
+}
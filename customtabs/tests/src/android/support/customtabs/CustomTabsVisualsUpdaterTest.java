@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link CustomTabsVisualsUpdater}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CustomTabsVisualsUpdaterTest {
+    private TestCustomTabsServiceBinder mService;
+    private CustomTabsVisualsUpdater mUpdater;
+
+    private static Bitmap createIcon(int color) {
+        Bitmap icon = Bitmap.createBitmap(24, 24, Bitmap.Config.ARGB_8888);
+        icon.eraseColor(color);
+        return icon;
+    }
+
+    @Before
+    public void setup() {
+        mService = new TestCustomTabsServiceBinder();
+        mUpdater = new CustomTabsVisualsUpdater(mService.createSession());
+        // Only flush explicitly.
+        mUpdater.setDebounce(60000);
+    }
+
+    @Test
+    public void testUpdatesAreMerged() {
+        mUpdater.setActionButton(createIcon(Color.RED), "Red");
+        mUpdater.setActionButton(createIcon(Color.BLUE), "Blue");
+        mUpdater.setToolbarItem(1, createIcon(Color.GREEN), "Green");
+        mUpdater.setSecondaryToolbarViews(null, null, null);
+        assertTrue(mUpdater.flush());
+
+        assertEquals(1, mService.getVisuals().size());
+        Bundle visuals = mService.getVisuals().get(0);
+        Bundle actionButton = visuals.getBundle(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE);
+        assertEquals("Blue", actionButton.getString(CustomTabsIntent.KEY_DESCRIPTION));
+        assertEquals(1, visuals.getParcelableArrayList(CustomTabsIntent.EXTRA_TOOLBAR_ITEMS)
+                .size());
+        assertTrue(visuals.containsKey(CustomTabsIntent.EXTRA_REMOTEVIEWS));
+    }
+
+    @Test
+    public void testOnlyChangesAreSent() {
+        mUpdater.setActionButton(createIcon(Color.RED), "Red");
+        mUpdater.setSecondaryToolbarViews(null, null, null);
+        assertTrue(mUpdater.flush());
+
+        mUpdater.setActionButton(createIcon(Color.RED), "Red");
+        mUpdater.setSecondaryToolbarViews(null, null, null);
+        assertTrue(mUpdater.flush());
+        assertEquals(1, mService.getVisuals().size());
+
+        mUpdater.setActionButton(createIcon(Color.RED), "Red");
+        mUpdater.setSecondaryToolbarViews(null, new int[] {1}, null);
+        assertTrue(mUpdater.flush());
+        assertEquals(2, mService.getVisuals().size());
+        Bundle visuals = mService.getVisuals().get(1);
+        assertFalse(visuals.containsKey(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE));
+        assertNotNull(visuals.getIntArray(CustomTabsIntent.EXTRA_REMOTEVIEWS_VIEW_IDS));
+    }
+
+    @Test
+    public void testRedrawnIconIsSent() {
+        Bitmap icon = createIcon(Color.RED);
+        mUpdater.setActionButton(icon, "Icon");
+        assertTrue(mUpdater.flush());
+
+        icon.eraseColor(Color.BLUE);
+        mUpdater.setActionButton(icon, "Icon");
+        assertTrue(mUpdater.flush());
+        assertEquals(2, mService.getVisuals().size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        mUpdater.setActionButton(createIcon(Color.RED), "Red");
+        mUpdater.setSecondaryToolbarViews(null, null, null);
+        assertTrue(mUpdater.flush());
+
+        // For instance after a new launch of the tab with other visuals.
+        mUpdater.invalidate();
+        mUpdater.setActionButton(createIcon(Color.RED), "Red");
+        mUpdater.setSecondaryToolbarViews(null, null, null);
+        assertTrue(mUpdater.flush());
+        assertEquals(2, mService.getVisuals().size());
+        Bundle visuals = mService.getVisuals().get(1);
+        assertTrue(visuals.containsKey(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE));
+        assertTrue(visuals.containsKey(CustomTabsIntent.EXTRA_REMOTEVIEWS));
+    }
+
+    @Test
+    public void testSessionCallsAreAlwaysSent() {
+        CustomTabsSession session = mUpdater.getSession();
+        assertTrue(session.setSecondaryToolbarViews(null, null, null));
+        assertTrue(session.setSecondaryToolbarViews(null, null, null));
+        assertEquals(2, mService.getVisuals().size());
+    }
+}
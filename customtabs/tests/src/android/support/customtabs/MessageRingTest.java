@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MessageRing} and {@link PostMessageRing}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MessageRingTest {
+    private static final String TAG = "MessageRingTest";
+
+    @Test
+    public void testMessagesWrapAround() {
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(16));
+        List<byte[]> messages = new ArrayList<>();
+        long head = 0;
+        long tail = 0;
+        // Records of 7 bytes do not divide the ring, so both headers and payloads wrap around.
+        for (byte i = 0; i < 10; i++) {
+            byte[] payload = new byte[] {i, (byte) (i + 1), (byte) (i + 2)};
+            tail = ring.write(head, tail, payload);
+            head = ring.read(head, tail, messages);
+            assertEquals(tail, head);
+            assertArrayEquals(payload, messages.remove(0));
+        }
+    }
+
+    @Test
+    public void testWriteFailsWhenFull() {
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(16));
+        long tail = ring.write(0, 0, new byte[8]);
+        assertEquals(12, tail);
+        assertEquals(-1, ring.write(0, tail, new byte[1]));
+        assertEquals(16, ring.write(0, tail, new byte[0]));
+
+        List<byte[]> messages = new ArrayList<>();
+        long head = ring.read(0, tail, messages);
+        assertEquals(28, ring.write(head, tail, new byte[12]));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadRejectsInvalidPositions() {
+        MessageRing ring = new MessageRing(ByteBuffer.allocate(16));
+        ring.read(0, 17, new ArrayList<byte[]>());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadRejectsInvalidLength() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putInt(0, 100);
+        new MessageRing(buffer).read(0, 8, new ArrayList<byte[]>());
+    }
+
+    @Test
+    public void testOpenFailsWithoutBrowserSupport() {
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        assertNull(PostMessageRing.open(service.createSession()));
+    }
+
+    /**
+     * Logs the cost per message of going through the ring, to compare with that of a binder
+     * transaction per message.
+     */
+    @Test
+    public void testThroughput() {
+        final int messageCount = 100000;
+        MessageRing ring = new MessageRing(ByteBuffer.allocateDirect(64 * 1024));
+        byte[] payload = "{\"type\":\"scroll\",\"y\":1234}".getBytes();
+        List<byte[]> messages = new ArrayList<>();
+        long head = 0;
+        long tail = 0;
+        int received = 0;
+
+        long startNs = System.nanoTime();
+        for (int i = 0; i < messageCount; i++) {
+            long newTail = ring.write(head, tail, payload);
+            if (newTail < 0) {
+                head = ring.read(head, tail, messages);
+                received += messages.size();
+                messages.clear();
+                newTail = ring.write(head, tail, payload);
+            }
+            tail = newTail;
+        }
+        ring.read(head, tail, messages);
+        received += messages.size();
+        long elapsedNs = System.nanoTime() - startNs;
+
+        assertEquals(messageCount, received);
+        Log.i(TAG, "Ring throughput: " + (elapsedNs / messageCount) + "ns per message.");
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link PostMessageQueue}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PostMessageQueueTest {
+    private static final int MESSAGE_COUNT = 50;
+
+    private TestCustomTabsServiceBinder mService;
+    private PostMessageQueue mQueue;
+
+    @Before
+    public void setup() {
+        mService = new TestCustomTabsServiceBinder();
+        mQueue = new PostMessageQueue(mService.createSession(), MESSAGE_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.close();
+    }
+
+    @Test
+    public void testMessagesAreSentInOrder() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(MESSAGE_COUNT);
+        final List<Integer> results = new ArrayList<>();
+        PostMessageQueue.ResultCallback callback = new PostMessageQueue.ResultCallback() {
+            @Override
+            public void onPostMessageResult(@NonNull String message, int result) {
+                synchronized (results) {
+                    results.add(result);
+                }
+                latch.countDown();
+            }
+        };
+
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            String message = "message " + i;
+            messages.add(message);
+            assertTrue(mQueue.offer(message, callback));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(messages, mService.getMessages());
+        for (int result : results) assertEquals(CustomTabsService.RESULT_SUCCESS, result);
+    }
+
+    @Test
+    public void testOfferFailsWhenClosed() {
+        mQueue.close();
+        assertFalse(mQueue.offer("message", null));
+    }
+
+    @Test
+    public void testBatchesAreBoundedInLength() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> batchSizes = new ArrayList<>();
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder() {
+            @Override
+            public synchronized int postMessage(ICustomTabsCallback callback, String message,
+                    Bundle extras) {
+                // Holds the thread, so that the next messages are sent together.
+                if ("first".equals(message)) {
+                    blocked.countDown();
+                    awaitUninterruptibly(release);
+                }
+                return super.postMessage(callback, message, extras);
+            }
+
+            @Override
+            public Bundle extraCommand(String commandName, Bundle args) {
+                if (!CustomTabsService.COMMAND_POST_MESSAGE_BATCH.equals(commandName)) {
+                    return null;
+                }
+                List<String> messages =
+                        args.getStringArrayList(CustomTabsService.KEY_POST_MESSAGE_MESSAGES);
+                batchSizes.add(messages.size());
+                int[] results = new int[messages.size()];
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = super.postMessage(null, messages.get(i), null);
+                }
+                Bundle reply = new Bundle();
+                reply.putIntArray(CustomTabsService.KEY_POST_MESSAGE_RESULTS, results);
+                return reply;
+            }
+        };
+        PostMessageQueue queue = new PostMessageQueue(service.createSession(), MESSAGE_COUNT);
+        final CountDownLatch sent = new CountDownLatch(11);
+        PostMessageQueue.ResultCallback callback = new PostMessageQueue.ResultCallback() {
+            @Override
+            public void onPostMessageResult(@NonNull String message, int result) {
+                sent.countDown();
+            }
+        };
+
+        queue.offer("first", callback);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        char[] chars = new char[PostMessageQueue.MAX_BATCH_CHARS / 3];
+        Arrays.fill(chars, 'a');
+        String message = new String(chars);
+        for (int i = 0; i < 10; i++) assertTrue(queue.offer(message, callback));
+        release.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        queue.close();
+
+        assertEquals(Arrays.asList(3, 3, 3), batchSizes);
+        assertEquals(11, service.getMessages().size());
+    }
+
+    @Test
+    public void testEveryQueuedMessageIsReportedWhenClosing() throws InterruptedException {
+        final AtomicInteger queuedCount = new AtomicInteger();
+        final AtomicInteger reportedCount = new AtomicInteger();
+        final PostMessageQueue.ResultCallback callback = new PostMessageQueue.ResultCallback() {
+            @Override
+            public void onPostMessageResult(@NonNull String message, int result) {
+                reportedCount.incrementAndGet();
+            }
+        };
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (mQueue.offer("message", callback)) queuedCount.incrementAndGet();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        // Closes while messages are being queued.
+        mQueue.close();
+        for (Thread producer : producers) producer.join();
+
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                return reportedCount.get() == queuedCount.get();
+            }
+        });
+    }
+
+    @Test
+    public void testThreadStopsWhenIdle() throws InterruptedException {
+        final PostMessageQueue queue =
+                new PostMessageQueue(mService.createSession(), MESSAGE_COUNT, 50);
+        assertFalse(queue.isThreadRunning());
+
+        final CountDownLatch sent = new CountDownLatch(2);
+        PostMessageQueue.ResultCallback callback = new PostMessageQueue.ResultCallback() {
+            @Override
+            public void onPostMessageResult(@NonNull String message, int result) {
+                sent.countDown();
+            }
+        };
+        assertTrue(queue.offer("message1", callback));
+        assertTrue(queue.isThreadRunning());
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                return !queue.isThreadRunning();
+            }
+        });
+
+        // Started again by the next message.
+        assertTrue(queue.offer("message2", callback));
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("message1", "message2"), mService.getMessages());
+        queue.close();
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the pending message buffer of {@link PostMessageServiceConnection}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PostMessageServiceConnectionBufferTest {
+    private static final String CHANNEL_READY = "channel ready";
+
+    private final List<String> mEvents = new ArrayList<>();
+    private final IPostMessageService.Stub mService = new IPostMessageService.Stub() {
+        @Override
+        public void onMessageChannelReady(ICustomTabsCallback callback, Bundle extras) {
+            mEvents.add(CHANNEL_READY);
+        }
+
+        @Override
+        public void onPostMessage(ICustomTabsCallback callback, String message, Bundle extras) {
+            mEvents.add(message);
+        }
+    };
+    private PostMessageServiceConnection mConnection;
+
+    @Before
+    public void setup() {
+        mConnection = new PostMessageServiceConnection(
+                new CustomTabsSessionToken(new TestCustomTabsCallback().getStub()));
+    }
+
+    @Test
+    public void testMessagesAreFlushedInOrderOnConnection() {
+        assertFalse(mConnection.notifyMessageChannelReady(null));
+        assertTrue(mConnection.postMessage("message1", null));
+        assertTrue(mConnection.postMessage("message2", null));
+        assertEquals(2, mConnection.getPendingMessageCount());
+
+        mConnection.onServiceConnected(null, mService);
+        assertTrue(mConnection.postMessage("message3", null));
+
+        assertEquals(Arrays.asList(CHANNEL_READY, "message1", "message2", "message3"), mEvents);
+        assertEquals(0, mConnection.getPendingMessageCount());
+        assertEquals(2, mConnection.getBufferedMessageCount());
+        assertEquals(2, mConnection.getFlushedMessageCount());
+        assertEquals(0, mConnection.getDroppedMessageCount());
+    }
+
+    @Test
+    public void testOverflowRejectsNewMessages() {
+        mConnection.setPendingMessageBuffer(2, PostMessageServiceConnection.OVERFLOW_REJECT);
+        assertTrue(mConnection.postMessage("message1", null));
+        assertTrue(mConnection.postMessage("message2", null));
+        assertFalse(mConnection.postMessage("message3", null));
+
+        mConnection.onServiceConnected(null, mService);
+        assertEquals(Arrays.asList("message1", "message2"), mEvents);
+        assertEquals(1, mConnection.getDroppedMessageCount());
+    }
+
+    @Test
+    public void testOverflowDropsOldestMessages() {
+        mConnection.setPendingMessageBuffer(2, PostMessageServiceConnection.OVERFLOW_DROP_OLDEST);
+        assertTrue(mConnection.postMessage("message1", null));
+        assertTrue(mConnection.postMessage("message2", null));
+        assertTrue(mConnection.postMessage("message3", null));
+
+        mConnection.onServiceConnected(null, mService);
+        assertEquals(Arrays.asList("message2", "message3"), mEvents);
+        assertEquals(1, mConnection.getDroppedMessageCount());
+    }
+}
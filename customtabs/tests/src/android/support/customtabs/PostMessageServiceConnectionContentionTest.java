@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that concurrent producers of {@link PostMessageServiceConnection#postMessage} do not
+ * wait for each other's IPC, and reports their throughput against a service simulating the
+ * latency of a binder transaction.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PostMessageServiceConnectionContentionTest {
+    private static final String TAG = "PostMessageContention";
+    private static final int MESSAGES_PER_THREAD = 50;
+    private static final long CALL_LATENCY_MS = 2;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final AtomicInteger mReceivedCount = new AtomicInteger();
+    private final IPostMessageService.Stub mService = new IPostMessageService.Stub() {
+        @Override
+        public void onMessageChannelReady(ICustomTabsCallback callback, Bundle extras) {}
+
+        @Override
+        public void onPostMessage(ICustomTabsCallback callback, String message, Bundle extras) {
+            SystemClock.sleep(CALL_LATENCY_MS);
+            mReceivedCount.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void testProducersDoNotWaitForEachOther() throws InterruptedException {
+        final int threadCount = 4;
+        // Each call returns only once all the producers are in a call at the same time, which
+        // never happens if the calls are serialized.
+        final CountDownLatch allInCall = new CountDownLatch(threadCount);
+        final AtomicInteger completedCount = new AtomicInteger();
+        IPostMessageService.Stub service = new IPostMessageService.Stub() {
+            @Override
+            public void onMessageChannelReady(ICustomTabsCallback callback, Bundle extras) {}
+
+            @Override
+            public void onPostMessage(
+                    ICustomTabsCallback callback, String message, Bundle extras) {
+                allInCall.countDown();
+                try {
+                    if (allInCall.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        completedCount.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    // Not completed.
+                }
+            }
+        };
+        PostMessageServiceConnection connection = createConnection(service);
+        runProducers(connection, threadCount, 1);
+
+        assertEquals(threadCount, completedCount.get());
+    }
+
+    @Test
+    public void testReportThroughput() throws InterruptedException {
+        double singleThreadRate = measureMessagesPerSecond(1);
+        double fourThreadRate = measureMessagesPerSecond(4);
+        double sixteenThreadRate = measureMessagesPerSecond(16);
+        // Only reported, as wall clock rates depend on the device and its load.
+        Log.i(TAG, "Messages per second with 1, 4 and 16 producers: " + singleThreadRate + ", "
+                + fourThreadRate + ", " + sixteenThreadRate);
+    }
+
+    private double measureMessagesPerSecond(int threadCount) throws InterruptedException {
+        PostMessageServiceConnection connection = createConnection(mService);
+        mReceivedCount.set(0);
+
+        long startMs = SystemClock.elapsedRealtime();
+        runProducers(connection, threadCount, MESSAGES_PER_THREAD);
+        long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+
+        assertEquals(threadCount * MESSAGES_PER_THREAD, mReceivedCount.get());
+        return threadCount * MESSAGES_PER_THREAD * 1000.0 / Math.max(1, elapsedMs);
+    }
+
+    private static PostMessageServiceConnection createConnection(
+            IPostMessageService.Stub service) {
+        PostMessageServiceConnection connection = new PostMessageServiceConnection(
+                new CustomTabsSessionToken(new TestCustomTabsCallback().getStub()));
+        connection.onServiceConnected(null, service);
+        return connection;
+    }
+
+    /**
+     * Posts messages from the given number of threads started at once, and waits for them.
+     */
+    private static void runProducers(final PostMessageServiceConnection connection,
+            int threadCount, final int messagesPerThread) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < messagesPerThread; j++) {
+                        connection.postMessage("message", null);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+    }
+}
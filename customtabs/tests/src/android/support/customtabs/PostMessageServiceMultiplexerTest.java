@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests for {@link PostMessageServiceMultiplexer}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PostMessageServiceMultiplexerTest {
+    private Context mContext;
+    private PostMessageServiceMultiplexer mMultiplexer;
+    private TestCustomTabsCallback mCallback1;
+    private TestCustomTabsCallback mCallback2;
+    private PostMessageServiceConnection mConnection1;
+    private PostMessageServiceConnection mConnection2;
+
+    @Before
+    public void setup() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mMultiplexer = new PostMessageServiceMultiplexer(mContext);
+        mCallback1 = new TestCustomTabsCallback();
+        mCallback2 = new TestCustomTabsCallback();
+        mConnection1 = new PostMessageServiceConnection(
+                new CustomTabsSessionToken(mCallback1.getStub()));
+        mConnection2 = new PostMessageServiceConnection(
+                new CustomTabsSessionToken(mCallback2.getStub()));
+    }
+
+    @Test
+    public void testSessionsShareOneBinding() {
+        String packageName = mContext.getPackageName();
+        assertTrue(mMultiplexer.attach(mConnection1, packageName));
+        assertTrue(mMultiplexer.attach(mConnection2, packageName));
+        assertFalse(mMultiplexer.attach(mConnection2, packageName));
+        assertEquals(1, mMultiplexer.getBindingCount());
+        assertEquals(2, mMultiplexer.getAttachedConnectionCount());
+
+        mConnection1.postMessage("message1", null);
+        mConnection2.postMessage("message2", null);
+        PollingCheck.waitFor(500, new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                return mConnection1.getPendingMessageCount() == 0
+                        && mConnection2.getPendingMessageCount() == 0;
+            }
+        });
+        assertEquals(Collections.singletonList("message1"), mCallback1.getMessages());
+        assertEquals(Collections.singletonList("message2"), mCallback2.getMessages());
+
+        mConnection1.cleanup(mContext);
+        assertEquals(1, mMultiplexer.getBindingCount());
+        mConnection2.postMessage("message3", null);
+        assertEquals(Arrays.asList("message2", "message3"), mCallback2.getMessages());
+
+        mMultiplexer.detach(mConnection2);
+        assertEquals(0, mMultiplexer.getBindingCount());
+        assertEquals(0, mMultiplexer.getAttachedConnectionCount());
+    }
+}
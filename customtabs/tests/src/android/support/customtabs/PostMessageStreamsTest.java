@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PostMessageStreams}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PostMessageStreamsTest {
+    private static String createMessage(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'é');
+        return new String(chars);
+    }
+
+    @Test
+    public void testStreamingIsNegotiated() {
+        IBinder sessionBinder = new Binder();
+        String largeMessage = createMessage(PostMessageStreams.STREAMING_THRESHOLD_CHARS + 1);
+        assertFalse(PostMessageStreams.shouldStream(sessionBinder, largeMessage));
+
+        PostMessageStreams.onPeerExtras(sessionBinder, new Bundle());
+        assertFalse(PostMessageStreams.shouldStream(sessionBinder, largeMessage));
+
+        PostMessageStreams.onPeerExtras(sessionBinder,
+                PostMessageStreams.declareStreamingSupport(null));
+        assertTrue(PostMessageStreams.shouldStream(sessionBinder, largeMessage));
+        assertFalse(PostMessageStreams.shouldStream(sessionBinder, "small"));
+    }
+
+    @Test
+    public void testLargeMessageRoundTrip() throws IOException {
+        // Larger than a binder transaction and than a pipe buffer.
+        String message = createMessage(PostMessageStreams.MAX_STREAM_BYTES / 2);
+        Bundle extras = new Bundle();
+        ParcelFileDescriptor readEnd = PostMessageStreams.startStream(message, extras);
+        try {
+            assertTrue(PostMessageStreams.hasStream(extras));
+            assertEquals(message, PostMessageStreams.readStream(extras));
+            assertFalse(PostMessageStreams.hasStream(extras));
+        } finally {
+            PostMessageStreams.closeQuietly(readEnd);
+        }
+    }
+
+    @Test
+    public void testStalledStreamTimesOut() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Bundle extras = new Bundle();
+        extras.putParcelable(PostMessageStreams.EXTRA_MESSAGE_STREAM, pipe[0]);
+        try {
+            // Nothing is ever written, but the write end stays open.
+            long startMs = SystemClock.uptimeMillis();
+            assertNull(PostMessageStreams.readStream(extras, 100));
+            assertTrue(SystemClock.uptimeMillis() - startMs < PostMessageStreams.READ_TIMEOUT_MS);
+            assertFalse(PostMessageStreams.hasStream(extras));
+        } finally {
+            PostMessageStreams.closeQuietly(pipe[0]);
+            PostMessageStreams.closeQuietly(pipe[1]);
+        }
+    }
+
+    @Test
+    public void testStalledStreamTimesOutOnMainThread() throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final Bundle extras = new Bundle();
+        extras.putParcelable(PostMessageStreams.EXTRA_MESSAGE_STREAM, pipe[0]);
+        final String[] result = new String[] {"not read"};
+        try {
+            // The deadline does not depend on the main thread being free.
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    result[0] = PostMessageStreams.readStream(extras, 100);
+                }
+            });
+            assertNull(result[0]);
+        } finally {
+            PostMessageStreams.closeQuietly(pipe[0]);
+            PostMessageStreams.closeQuietly(pipe[1]);
+        }
+    }
+
+    @Test
+    public void testDiscardStream() throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Bundle extras = new Bundle();
+        extras.putParcelable(PostMessageStreams.EXTRA_MESSAGE_STREAM, pipe[0]);
+        try {
+            PostMessageStreams.discardStream(extras);
+            assertFalse(PostMessageStreams.hasStream(extras));
+            // The read end is closed, so the writer fails instead of blocking.
+            OutputStream stream = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+            try {
+                PostMessageStreams.writePayload(stream, new byte[1024 * 1024]);
+                fail();
+            } catch (IOException e) {
+                // Expected.
+            }
+        } finally {
+            PostMessageStreams.closeQuietly(pipe[1]);
+        }
+    }
+
+    @Test
+    public void testTooLargeMessageIsNotStreamed() {
+        try {
+            PostMessageStreams.startStream(
+                    createMessage(PostMessageStreams.MAX_STREAM_BYTES), new Bundle());
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testTruncatedPayloadFails() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(output);
+        // Announces the largest payload, but only sends a little of it.
+        data.writeInt(PostMessageStreams.MAX_STREAM_BYTES);
+        data.write(new byte[1000]);
+        try {
+            PostMessageStreams.readPayload(new ByteArrayInputStream(output.toByteArray()));
+            fail();
+        } catch (EOFException e) {
+            // Expected.
+        }
+
+        output.reset();
+        data.writeInt(PostMessageStreams.MAX_STREAM_BYTES + 1);
+        try {
+            PostMessageStreams.readPayload(new ByteArrayInputStream(output.toByteArray()));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link PrefetchScheduler}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PrefetchSchedulerTest {
+    private static final Uri URL_1 = Uri.parse("https://www.example.com/1");
+    private static final Uri URL_2 = Uri.parse("https://www.example.com/2");
+    private static final Uri URL_3 = Uri.parse("https://www.example.com/3");
+
+    private TestCustomTabsServiceBinder mService;
+    private PrefetchScheduler mScheduler;
+    private long mTimeMs;
+
+    @Before
+    public void setup() {
+        mService = new TestCustomTabsServiceBinder();
+        mScheduler = new PrefetchScheduler(mService.createSession()) {
+            @Override
+            long getCurrentTimeMs() {
+                return mTimeMs;
+            }
+        };
+        mScheduler.setMaxUrlsPerHint(2);
+        mScheduler.setHintsPerSecond(1);
+        mTimeMs = 1000;
+    }
+
+    @Test
+    public void testBestCandidatesArePackedInOneCall() {
+        mScheduler.addCandidate(URL_1, 1f);
+        mScheduler.addCandidate(URL_2, 3f);
+        mScheduler.addCandidate(URL_3, 2f);
+        assertTrue(mScheduler.flush());
+
+        assertEquals(1, mService.getMayLaunchUrls().size());
+        assertEquals(URL_2, mService.getMayLaunchUrls().get(0));
+        List<Bundle> others = mService.getOtherLikelyBundles().get(0);
+        assertEquals(1, others.size());
+        assertEquals(URL_3, others.get(0).getParcelable(CustomTabsService.KEY_URL));
+    }
+
+    @Test
+    public void testRateLimit() {
+        mScheduler.addCandidate(URL_1, 1f);
+        assertTrue(mScheduler.flush());
+
+        mScheduler.addCandidate(URL_2, 1f);
+        assertFalse(mScheduler.flush());
+        assertEquals(1, mScheduler.getRateLimitedCount());
+
+        // The candidate is kept until the budget allows sending it.
+        mTimeMs += 1000;
+        assertTrue(mScheduler.flush());
+        assertEquals(2, mService.getMayLaunchUrls().size());
+        assertEquals(URL_2, mService.getMayLaunchUrls().get(1));
+    }
+
+    @Test
+    public void testRecentlyHintedUrlsAreSkipped() {
+        mScheduler.addCandidate(URL_1, 1f);
+        assertTrue(mScheduler.flush());
+
+        mTimeMs += 1000;
+        mScheduler.addCandidate(URL_1, 1f);
+        assertFalse(mScheduler.flush());
+        assertEquals(1, mScheduler.getDeduplicatedCount());
+
+        mTimeMs += PrefetchScheduler.DEFAULT_DEDUP_WINDOW_MS;
+        mScheduler.addCandidate(URL_1, 1f);
+        assertTrue(mScheduler.flush());
+        assertEquals(2, mScheduler.getHintCount());
+    }
+
+    @Test
+    public void testHitAccounting() {
+        mScheduler.addCandidate(URL_1, 1f);
+        mScheduler.addCandidate(URL_2, 1f);
+        mScheduler.flush();
+
+        mScheduler.recordLaunch(URL_2);
+        mScheduler.recordLaunch(URL_3);
+        assertEquals(1, mScheduler.getHitCount());
+        assertEquals(1, mScheduler.getMissCount());
+    }
+}
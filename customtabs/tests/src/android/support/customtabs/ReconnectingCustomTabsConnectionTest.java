@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link ReconnectingCustomTabsConnection}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ReconnectingCustomTabsConnectionTest {
+    private static final Uri URL = Uri.parse("https://www.example.com");
+
+    private Instrumentation mInstrumentation;
+    private TestBindingContext mContext;
+    private ReconnectingCustomTabsConnection mConnection;
+
+    /** Counts the sessions created through it, and optionally rejects the hints. */
+    private static class SessionCountingBinder extends TestCustomTabsServiceBinder {
+        private final boolean mAcceptHints;
+        int mSessionCount;
+
+        SessionCountingBinder(boolean acceptHints) {
+            mAcceptHints = acceptHints;
+        }
+
+        @Override
+        public boolean newSessionWithExtras(ICustomTabsCallback callback, Bundle extras) {
+            mSessionCount++;
+            return true;
+        }
+
+        @Override
+        public boolean mayLaunchUrl(ICustomTabsCallback callback, Uri url, Bundle extras,
+                List<Bundle> otherLikelyBundles) {
+            super.mayLaunchUrl(callback, url, extras, otherLikelyBundles);
+            return mAcceptHints;
+        }
+    }
+
+    @Before
+    public void setup() {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        mContext = new TestBindingContext(InstrumentationRegistry.getTargetContext());
+        mConnection = new ReconnectingCustomTabsConnection(mContext,
+                TestBindingContext.PACKAGE_NAME);
+        // Rebinds are triggered by the tests only, unless a test sets a shorter backoff.
+        mConnection.setBackoff(60000, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mConnection.disconnect();
+            }
+        });
+    }
+
+    private void runOnMainSync(Runnable runnable) {
+        mInstrumentation.runOnMainSync(runnable);
+    }
+
+    private void connect(final TestCustomTabsServiceBinder service) {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mContext.connect(service);
+            }
+        });
+    }
+
+    @Test
+    public void testHintBufferedWhileDisconnected() {
+        final ReconnectingCustomTabsConnection.ReconnectingSession[] session =
+                new ReconnectingCustomTabsConnection.ReconnectingSession[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(mConnection.connect());
+                session[0] = mConnection.newSession(null, 1);
+                assertNull(session[0].getSession());
+                assertFalse(session[0].mayLaunchUrl(URL, null, null));
+            }
+        });
+
+        SessionCountingBinder service = new SessionCountingBinder(true);
+        connect(service);
+        assertNotNull(session[0].getSession());
+        assertEquals(1, service.mSessionCount);
+        assertEquals(Collections.singletonList(URL), service.getMayLaunchUrls());
+    }
+
+    @Test
+    public void testRejectedHintIsNotReplayed() {
+        final ReconnectingCustomTabsConnection.ReconnectingSession[] session =
+                new ReconnectingCustomTabsConnection.ReconnectingSession[1];
+        SessionCountingBinder service = new SessionCountingBinder(false);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mConnection.connect();
+                session[0] = mConnection.newSession(null, 1);
+            }
+        });
+        connect(service);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertFalse(session[0].mayLaunchUrl(URL, null, null));
+                mContext.disconnect();
+            }
+        });
+
+        SessionCountingBinder restartedService = new SessionCountingBinder(true);
+        connect(restartedService);
+        assertEquals(1, mConnection.getReconnectionCount());
+        assertEquals(1, restartedService.mSessionCount);
+        assertTrue(restartedService.getMayLaunchUrls().isEmpty());
+    }
+
+    @Test
+    public void testClosedSessionIsNotRecreated() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mConnection.connect();
+                mConnection.newSession(null, 1);
+                ReconnectingCustomTabsConnection.ReconnectingSession session =
+                        mConnection.newSession(null, 2);
+                session.mayLaunchUrl(URL, null, null);
+                session.close();
+                assertFalse(session.mayLaunchUrl(URL, null, null));
+            }
+        });
+
+        SessionCountingBinder service = new SessionCountingBinder(true);
+        connect(service);
+        assertEquals(1, service.mSessionCount);
+        assertTrue(service.getMayLaunchUrls().isEmpty());
+    }
+
+    @Test
+    public void testRebindAfterBackoff() {
+        mConnection.setBackoff(10, 40);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mConnection.connect();
+            }
+        });
+        connect(new SessionCountingBinder(true));
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mContext.disconnect();
+            }
+        });
+        assertNull(mConnection.getClient());
+
+        // The service has not come back by itself, so the connection binds again.
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                return mContext.getBindCount() == 2;
+            }
+        });
+        assertEquals(1, mContext.getUnbindCount());
+        assertEquals(1, mContext.getConnections().size());
+
+        connect(new SessionCountingBinder(true));
+        assertNotNull(mConnection.getClient());
+        assertEquals(1, mConnection.getReconnectionCount());
+    }
+}
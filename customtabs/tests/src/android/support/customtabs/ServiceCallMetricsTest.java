@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static android.support.customtabs.ServiceCallMetrics.METHOD_MAY_LAUNCH_URL;
+import static android.support.customtabs.ServiceCallMetrics.METHOD_WARMUP;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link ServiceCallMetrics}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ServiceCallMetricsTest {
+    private ServiceCallMetrics.Histogram mHistogram;
+
+    @Before
+    public void setup() {
+        mHistogram = new ServiceCallMetrics.Histogram();
+    }
+
+    @After
+    public void tearDown() {
+        ServiceCallMetrics.uninstall();
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        long[] durationsNs = {0, 999, 1000, 1999, 2000, 3999, 4000, Long.MAX_VALUE};
+        for (long durationNs : durationsNs) {
+            mHistogram.onServiceCall(METHOD_WARMUP, durationNs,
+                    CustomTabsService.RESULT_SUCCESS, -1);
+        }
+
+        long[] expected = new long[ServiceCallMetrics.Histogram.BUCKET_COUNT];
+        // Under 1us, under 2us, under 4us, under 8us, and the overflow bucket.
+        expected[0] = 2;
+        expected[1] = 2;
+        expected[2] = 2;
+        expected[3] = 1;
+        expected[ServiceCallMetrics.Histogram.BUCKET_COUNT - 1] = 1;
+        assertArrayEquals(expected, mHistogram.getLatencyBuckets(METHOD_WARMUP));
+        assertEquals(durationsNs.length, mHistogram.getCallCount(METHOD_WARMUP));
+        assertEquals(0, mHistogram.getCallCount(METHOD_MAY_LAUNCH_URL));
+    }
+
+    @Test
+    public void testResultsAndRequestSize() {
+        mHistogram.onServiceCall(METHOD_WARMUP, 0, CustomTabsService.RESULT_SUCCESS, 100);
+        mHistogram.onServiceCall(METHOD_WARMUP, 0, ServiceCallMetrics.RESULT_RETURNED_FALSE, -1);
+        mHistogram.onServiceCall(METHOD_WARMUP, 0, CustomTabsService.RESULT_SUCCESS, 20);
+
+        assertEquals(2, mHistogram.getResultCount(METHOD_WARMUP,
+                CustomTabsService.RESULT_SUCCESS));
+        assertEquals(1, mHistogram.getResultCount(METHOD_WARMUP,
+                ServiceCallMetrics.RESULT_RETURNED_FALSE));
+        assertEquals(120, mHistogram.getRequestBytes(METHOD_WARMUP));
+
+        mHistogram.reset();
+        assertEquals(0, mHistogram.getCallCount(METHOD_WARMUP));
+    }
+
+    @Test
+    public void testBooleanCallOutcomes() throws RemoteException {
+        ServiceCallMetrics.install(mHistogram, true);
+        ICustomTabsService service = ServiceCallMetrics.instrument(
+                new TestCustomTabsServiceBinder() {
+                    @Override
+                    public boolean warmup(long flags) {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean mayLaunchUrl(ICustomTabsCallback callback, Uri url,
+                            Bundle extras, List<Bundle> otherLikelyBundles) {
+                        throw new SecurityException();
+                    }
+                });
+
+        service.warmup(0);
+        try {
+            service.mayLaunchUrl(null, Uri.parse("https://www.example.com"), null, null);
+            fail();
+        } catch (SecurityException e) {
+            // Expected.
+        }
+
+        assertEquals(1, mHistogram.getResultCount(METHOD_WARMUP,
+                ServiceCallMetrics.RESULT_RETURNED_FALSE));
+        assertEquals(0, mHistogram.getResultCount(METHOD_WARMUP,
+                CustomTabsService.RESULT_FAILURE_DISALLOWED));
+        assertEquals(1, mHistogram.getResultCount(METHOD_MAY_LAUNCH_URL,
+                CustomTabsService.RESULT_FAILURE_REMOTE_ERROR));
+        assertEquals(8, mHistogram.getRequestBytes(METHOD_WARMUP));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.PendingIntent;
+import android.os.IBinder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link SessionRegistry}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SessionRegistryTest {
+    private static final IBinder.DeathRecipient DEATH_RECIPIENT = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {}
+    };
+
+    private final SessionRegistry mRegistry = new SessionRegistry();
+
+    @Test
+    public void testLookups() {
+        PendingIntent sessionId =
+                SessionIdCache.getPendingIntent(InstrumentationRegistry.getTargetContext(), 1);
+        CustomTabsSessionToken token =
+                new CustomTabsSessionToken(new CustomTabsSessionToken.MockCallback(), sessionId);
+        assertNull(mRegistry.put(token, DEATH_RECIPIENT));
+
+        assertSame(token, mRegistry.getByCallback(token.getCallbackBinder()));
+        assertSame(token, mRegistry.getById(sessionId));
+        assertEquals(1, mRegistry.size());
+
+        assertSame(DEATH_RECIPIENT, mRegistry.remove(token.getCallbackBinder()));
+        assertNull(mRegistry.getByCallback(token.getCallbackBinder()));
+        assertNull(mRegistry.getById(sessionId));
+        assertNull(mRegistry.remove(token.getCallbackBinder()));
+        assertEquals(0, mRegistry.size());
+    }
+
+    @Test
+    public void testRegistrationIsReplaced() {
+        ICustomTabsCallback callback = new CustomTabsSessionToken.MockCallback();
+        CustomTabsSessionToken first = new CustomTabsSessionToken(callback, null);
+        CustomTabsSessionToken second = new CustomTabsSessionToken(callback, null);
+        IBinder.DeathRecipient secondRecipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {}
+        };
+        mRegistry.put(first, DEATH_RECIPIENT);
+
+        assertSame(DEATH_RECIPIENT, mRegistry.put(second, secondRecipient));
+        assertSame(second, mRegistry.getByCallback(callback.asBinder()));
+        assertEquals(1, mRegistry.size());
+    }
+
+    @Test
+    public void testRemoveWithRecipient() {
+        CustomTabsSessionToken token =
+                new CustomTabsSessionToken(new CustomTabsSessionToken.MockCallback(), null);
+        IBinder.DeathRecipient otherRecipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {}
+        };
+        mRegistry.put(token, DEATH_RECIPIENT);
+
+        // Registered again with another recipient in the meantime.
+        assertFalse(mRegistry.remove(token.getCallbackBinder(), otherRecipient));
+        assertSame(token, mRegistry.getByCallback(token.getCallbackBinder()));
+        assertTrue(mRegistry.remove(token.getCallbackBinder(), DEATH_RECIPIENT));
+        assertEquals(0, mRegistry.size());
+    }
+
+    @Test
+    public void testIterationWithConcurrentChanges() throws InterruptedException {
+        final List<CustomTabsSessionToken> tokens = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            CustomTabsSessionToken token =
+                    new CustomTabsSessionToken(new CustomTabsSessionToken.MockCallback(), null);
+            tokens.add(token);
+            mRegistry.put(token, DEATH_RECIPIENT);
+        }
+
+        Thread remover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (CustomTabsSessionToken token : tokens) {
+                    mRegistry.remove(token.getCallbackBinder());
+                }
+            }
+        });
+        remover.start();
+        int iterated = 0;
+        for (CustomTabsSessionToken token : mRegistry.getSessions()) iterated++;
+        remover.join();
+
+        assertEquals(0, mRegistry.size());
+        assertTrue(iterated <= tokens.size());
+    }
+}
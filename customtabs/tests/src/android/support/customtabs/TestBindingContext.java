@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Context} recording service bindings instead of performing them, so that tests decide
+ * when the bound services connect and disconnect. Connections are notified on the calling thread.
+ */
+public class TestBindingContext extends ContextWrapper {
+    public static final String PACKAGE_NAME = "com.example.browser";
+
+    private final List<ServiceConnection> mConnections = new ArrayList<>();
+    private boolean mBindResult = true;
+    private int mBindCount;
+    private int mUnbindCount;
+
+    public TestBindingContext(Context base) {
+        super(base);
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public synchronized boolean bindService(Intent service, ServiceConnection conn, int flags) {
+        // As with a real Context, the connection has to be unbound even if binding failed.
+        mConnections.add(conn);
+        mBindCount++;
+        return mBindResult;
+    }
+
+    @Override
+    public synchronized void unbindService(ServiceConnection conn) {
+        if (!mConnections.remove(conn)) throw new IllegalArgumentException("Service not bound");
+        mUnbindCount++;
+    }
+
+    /**
+     * Sets the result of the following {@link #bindService} calls.
+     */
+    public synchronized void setBindResult(boolean bindResult) {
+        mBindResult = bindResult;
+    }
+
+    /**
+     * Connects all the bound connections to the given service.
+     */
+    public void connect(IBinder service) {
+        for (ServiceConnection connection : getConnections()) {
+            connection.onServiceConnected(getComponentName(), service);
+        }
+    }
+
+    /**
+     * Notifies all the bound connections that their service has been lost.
+     */
+    public void disconnect() {
+        for (ServiceConnection connection : getConnections()) {
+            connection.onServiceDisconnected(getComponentName());
+        }
+    }
+
+    /**
+     * @return The connections currently bound.
+     */
+    public synchronized List<ServiceConnection> getConnections() {
+        return new ArrayList<>(mConnections);
+    }
+
+    /**
+     * @return The number of {@link #bindService} calls.
+     */
+    public synchronized int getBindCount() {
+        return mBindCount;
+    }
+
+    /**
+     * @return The number of successful {@link #unbindService} calls.
+     */
+    public synchronized int getUnbindCount() {
+        return mUnbindCount;
+    }
+
+    private static ComponentName getComponentName() {
+        return new ComponentName(PACKAGE_NAME, "CustomTabsService");
+    }
+}
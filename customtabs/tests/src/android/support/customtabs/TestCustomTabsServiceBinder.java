@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import android.content.ComponentName;
+import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-process {@link ICustomTabsService} that records the calls made through a
+ * {@link CustomTabsSession}, for tests that do not need a real {@link CustomTabsService}.
+ */
+public class TestCustomTabsServiceBinder extends ICustomTabsService.Stub {
+    private final List<Uri> mMayLaunchUrls = new ArrayList<>();
+    private final List<List<Bundle>> mOtherLikelyBundles = new ArrayList<>();
+    private final List<Bundle> mVisuals = new ArrayList<>();
+    private final List<String> mMessages = new ArrayList<>();
+    private int mWarmupCount;
+    private volatile boolean mAlive = true;
+
+    /**
+     * @return A session talking to this binder.
+     */
+    public CustomTabsSession createSession() {
+        return new CustomTabsSession(this, new CustomTabsSessionToken.MockCallback(),
+                new ComponentName("com.example.browser", "CustomTabsService"), null);
+    }
+
+    @Override
+    public boolean isBinderAlive() {
+        return mAlive;
+    }
+
+    /**
+     * Simulates the death of the process hosting the service.
+     */
+    public void kill() {
+        mAlive = false;
+    }
+
+    @Override
+    public synchronized boolean warmup(long flags) {
+        mWarmupCount++;
+        return true;
+    }
+
+    @Override
+    public boolean newSession(ICustomTabsCallback callback) {
+        return true;
+    }
+
+    @Override
+    public boolean newSessionWithExtras(ICustomTabsCallback callback, Bundle extras) {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean mayLaunchUrl(ICustomTabsCallback callback, Uri url, Bundle extras,
+            List<Bundle> otherLikelyBundles) {
+        mMayLaunchUrls.add(url);
+        mOtherLikelyBundles.add(otherLikelyBundles);
+        return true;
+    }
+
+    @Override
+    public Bundle extraCommand(String commandName, Bundle args) {
+        return null;
+    }
+
+    @Override
+    public synchronized boolean updateVisuals(ICustomTabsCallback callback, Bundle bundle) {
+        mVisuals.add(bundle);
+        return true;
+    }
+
+    @Override
+    public boolean requestPostMessageChannel(ICustomTabsCallback callback,
+            Uri postMessageOrigin) {
+        return true;
+    }
+
+    @Override
+    public boolean requestPostMessageChannelWithExtras(ICustomTabsCallback callback,
+            Uri postMessageOrigin, Bundle extras) {
+        return true;
+    }
+
+    @Override
+    public synchronized int postMessage(ICustomTabsCallback callback, String message,
+            Bundle extras) {
+        mMessages.add(message);
+        return CustomTabsService.RESULT_SUCCESS;
+    }
+
+    @Override
+    public boolean validateRelationship(ICustomTabsCallback callback, int relation, Uri origin,
+            Bundle extras) {
+        return true;
+    }
+
+    /**
+     * @return The most likely URL of each {@link #mayLaunchUrl} call, in order.
+     */
+    public synchronized List<Uri> getMayLaunchUrls() {
+        return new ArrayList<>(mMayLaunchUrls);
+    }
+
+    /**
+     * @return The other likely bundles of each {@link #mayLaunchUrl} call, in order.
+     */
+    public synchronized List<List<Bundle>> getOtherLikelyBundles() {
+        return new ArrayList<>(mOtherLikelyBundles);
+    }
+
+    /**
+     * @return The bundle of each {@link #updateVisuals} call, in order.
+     */
+    public synchronized List<Bundle> getVisuals() {
+        return new ArrayList<>(mVisuals);
+    }
+
+    /**
+     * @return The message of each {@link #postMessage} call, in order.
+     */
+    public synchronized List<String> getMessages() {
+        return new ArrayList<>(mMessages);
+    }
+
+    /**
+     * @return The number of {@link #warmup} calls.
+     */
+    public synchronized int getWarmupCount() {
+        return mWarmupCount;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link TokenBucketAdmissionPolicy}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TokenBucketAdmissionPolicyTest {
+    private static final int UID = 10001;
+    private static final int POST_MESSAGE = AdmissionPolicy.REQUEST_POST_MESSAGE;
+
+    private long mTimeMs;
+    private TokenBucketAdmissionPolicy mPolicy;
+    private CustomTabsSessionToken mSession1;
+    private CustomTabsSessionToken mSession2;
+
+    @Before
+    public void setup() {
+        // 10 requests per second and bursts of 2 per session, 4 per application.
+        mPolicy = new TokenBucketAdmissionPolicy(10, 2, 10, 4) {
+            @Override
+            long getTimeMillis() {
+                return mTimeMs;
+            }
+        };
+        mSession1 = CustomTabsSessionToken.createMockSessionTokenForTesting();
+        mSession2 = CustomTabsSessionToken.createMockSessionTokenForTesting();
+    }
+
+    @Test
+    public void testSessionBudget() {
+        assertTrue(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+        assertTrue(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+        assertFalse(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+        // Budgets are per request type.
+        assertTrue(mPolicy.admit(mSession1, UID, AdmissionPolicy.REQUEST_MAY_LAUNCH_URL));
+
+        mTimeMs += 100;
+        assertTrue(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+        assertFalse(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+
+        assertEquals(4, mPolicy.getAdmittedCount());
+        assertEquals(2, mPolicy.getRejectedBySessionCount());
+    }
+
+    @Test
+    public void testApplicationBudget() {
+        assertTrue(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+        assertTrue(mPolicy.admit(mSession1, UID, POST_MESSAGE));
+        assertTrue(mPolicy.admit(mSession2, UID, POST_MESSAGE));
+        assertTrue(mPolicy.admit(mSession2, UID, POST_MESSAGE));
+
+        CustomTabsSessionToken session3 = CustomTabsSessionToken.createMockSessionTokenForTesting();
+        assertFalse(mPolicy.admit(session3, UID, POST_MESSAGE));
+        assertTrue(mPolicy.admit(session3, UID + 1, POST_MESSAGE));
+        assertEquals(1, mPolicy.getRejectedByUidCount());
+    }
+
+    @Test
+    public void testConcurrentSessionsShareApplicationBudget() throws InterruptedException {
+        final int threadCount = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger admitted = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final CustomTabsSessionToken session =
+                    CustomTabsSessionToken.createMockSessionTokenForTesting();
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        if (mPolicy.admit(session, UID, POST_MESSAGE)) admitted.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        // The clock does not move, so exactly the application burst is admitted.
+        assertEquals(4, admitted.get());
+        assertEquals(4, mPolicy.getAdmittedCount());
+        assertEquals(threadCount * 10 - 4,
+                mPolicy.getRejectedBySessionCount() + mPolicy.getRejectedByUidCount());
+    }
+}
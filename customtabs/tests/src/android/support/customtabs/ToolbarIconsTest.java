@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link ToolbarIcons} and its use by {@link CustomTabsSession}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ToolbarIconsTest {
+    private static Bitmap createIcon(int width, int height, int color) {
+        Bitmap icon = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        icon.eraseColor(color);
+        return icon;
+    }
+
+    @Test
+    public void testDownsampleKeepsSmallIcons() {
+        Bitmap icon = createIcon(48, 24, Color.RED);
+        assertSame(icon, ToolbarIcons.downsample(icon, 96, 48));
+    }
+
+    @Test
+    public void testDownsampleKeepsAspectRatio() {
+        Bitmap icon = createIcon(400, 100, Color.RED);
+        Bitmap downsampled = ToolbarIcons.downsample(icon, 96, 48);
+        assertEquals(96, downsampled.getWidth());
+        assertEquals(24, downsampled.getHeight());
+
+        icon = createIcon(100, 400, Color.RED);
+        downsampled = ToolbarIcons.downsample(icon, 96, 48);
+        assertEquals(12, downsampled.getWidth());
+        assertEquals(48, downsampled.getHeight());
+    }
+
+    @Test
+    public void testHashContent() {
+        assertEquals(ToolbarIcons.hashContent(createIcon(10, 10, Color.RED)),
+                ToolbarIcons.hashContent(createIcon(10, 10, Color.RED)));
+        assertNotEquals(ToolbarIcons.hashContent(createIcon(10, 10, Color.RED)),
+                ToolbarIcons.hashContent(createIcon(10, 10, Color.BLUE)));
+        assertNotEquals(ToolbarIcons.hashContent(createIcon(10, 20, Color.RED)),
+                ToolbarIcons.hashContent(createIcon(20, 10, Color.RED)));
+    }
+
+    @Test
+    public void testPrepareCachesDownsampledIcons() {
+        Bitmap icon = createIcon(1000, 1000, Color.GREEN);
+        Bitmap prepared = ToolbarIcons.prepare(icon);
+        assertSame(prepared, ToolbarIcons.prepare(icon));
+        assertTrue(prepared.getHeight() < 1000);
+    }
+
+    @Test
+    public void testPrepareDownsamplesRedrawnIcons() {
+        Bitmap icon = createIcon(1000, 1000, Color.GREEN);
+        Bitmap prepared = ToolbarIcons.prepare(icon);
+
+        icon.eraseColor(Color.RED);
+        Bitmap redrawn = ToolbarIcons.prepare(icon);
+        assertNotSame(prepared, redrawn);
+        assertEquals(Color.RED, redrawn.getPixel(0, 0));
+        assertSame(redrawn, ToolbarIcons.prepare(icon));
+    }
+
+    @Test
+    public void testPrepareKeepsSmallIcons() {
+        Bitmap icon = createIcon(10, 10, Color.RED);
+        assertSame(icon, ToolbarIcons.prepare(icon));
+
+        // The icon is not cached, so drawing into it again is not missed.
+        icon.eraseColor(Color.BLUE);
+        assertSame(icon, ToolbarIcons.prepare(icon));
+        Bitmap other = createIcon(10, 10, Color.BLUE);
+        assertSame(other, ToolbarIcons.prepare(other));
+    }
+
+    @Test
+    public void testActionButtonIsDownsampledAndAlwaysSent() {
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        CustomTabsSession session = service.createSession();
+
+        assertTrue(session.setActionButton(createIcon(1000, 500, Color.RED), "Share"));
+        Bundle bundle = service.getVisuals().get(0)
+                .getBundle(CustomTabsIntent.EXTRA_ACTION_BUTTON_BUNDLE);
+        Bitmap sentIcon = bundle.getParcelable(CustomTabsIntent.KEY_ICON);
+        assertTrue(sentIcon.getWidth() < 1000);
+
+        // The browser may have been given other visuals since, for instance by a new launch.
+        assertTrue(session.setActionButton(createIcon(1000, 500, Color.RED), "Share"));
+        assertEquals(2, service.getVisuals().size());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link VisibleLinkPredictor}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class VisibleLinkPredictorTest {
+    private static final Uri URL_1 = Uri.parse("https://www.example.com/1");
+    private static final Uri URL_2 = Uri.parse("https://www.example.com/2");
+    private static final Uri URL_3 = Uri.parse("https://www.example.com/3");
+
+    private TestCustomTabsServiceBinder mService;
+    private PrefetchScheduler mScheduler;
+    private VisibleLinkPredictor mPredictor;
+    private long mTimeMs;
+
+    @Before
+    public void setup() {
+        mService = new TestCustomTabsServiceBinder();
+        mScheduler = new PrefetchScheduler(mService.createSession()) {
+            @Override
+            long getCurrentTimeMs() {
+                return mTimeMs;
+            }
+        };
+        mScheduler.setMaxUrlsPerHint(2);
+        mScheduler.setHintsPerSecond(1);
+        mPredictor = new VisibleLinkPredictor(mScheduler) {
+            @Override
+            long getCurrentTimeMs() {
+                return mTimeMs;
+            }
+        };
+        // Updates are triggered by the tests only.
+        mPredictor.setUpdateInterval(Long.MAX_VALUE / 2);
+        mTimeMs = 1000;
+    }
+
+    @After
+    public void tearDown() {
+        mPredictor.onAllLinksHidden();
+    }
+
+    @Test
+    public void testLinksAreRankedByTimeOnScreen() {
+        mPredictor.onLinkVisible(URL_3);
+        mTimeMs += 300;
+        mPredictor.onLinkVisible(URL_1);
+        mTimeMs += 300;
+        mPredictor.onLinkVisible(URL_2);
+        mTimeMs += 300;
+        mPredictor.update();
+
+        // Only the two best links fit in a hint.
+        assertEquals(1, mService.getMayLaunchUrls().size());
+        assertEquals(URL_3, mService.getMayLaunchUrls().get(0));
+        List<Bundle> others = mService.getOtherLikelyBundles().get(0);
+        assertEquals(1, others.size());
+        assertEquals(URL_1, others.get(0).getParcelable(CustomTabsService.KEY_URL));
+    }
+
+    @Test
+    public void testPastTimeOnScreenIsAccumulated() {
+        mPredictor.onLinkVisible(URL_1);
+        mTimeMs += 600;
+        mPredictor.onLinkHidden(URL_1);
+        mPredictor.onLinkVisible(URL_2);
+        mTimeMs += 300;
+        mPredictor.onLinkVisible(URL_1);
+        mTimeMs += 100;
+        mPredictor.update();
+
+        // URL_1 has been on screen for 700ms in total, URL_2 for 400ms.
+        assertEquals(URL_1, mService.getMayLaunchUrls().get(0));
+    }
+
+    @Test
+    public void testTouchedLinkIsHintedFirst() {
+        mPredictor.onLinkVisible(URL_1);
+        mTimeMs += 1000;
+        mPredictor.onLinkTouched(URL_2);
+
+        assertEquals(1, mService.getMayLaunchUrls().size());
+        assertEquals(URL_2, mService.getMayLaunchUrls().get(0));
+    }
+
+    @Test
+    public void testHintsAreRateLimited() {
+        mPredictor.onLinkVisible(URL_1);
+        mTimeMs += 100;
+        mPredictor.update();
+        mPredictor.onLinkVisible(URL_2);
+        mTimeMs += 100;
+        mPredictor.update();
+        mPredictor.onLinkTouched(URL_3);
+
+        // One hint per second at most, whatever the number of updates.
+        assertEquals(1, mService.getMayLaunchUrls().size());
+
+        mTimeMs += 1000;
+        mPredictor.update();
+        assertEquals(2, mService.getMayLaunchUrls().size());
+    }
+}
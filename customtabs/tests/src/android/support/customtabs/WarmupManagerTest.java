@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.customtabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link WarmupManager}.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class WarmupManagerTest {
+    private static final String PACKAGE_NAME = "com.example.browser";
+
+    private WarmupManager mManager;
+    private long mTimeMs;
+
+    @Before
+    public void setup() {
+        mManager = new WarmupManager() {
+            @Override
+            long getTimeMillis() {
+                return mTimeMs;
+            }
+        };
+        mTimeMs = 1000;
+    }
+
+    @Test
+    public void testWarmupCallsServiceOnce() {
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        assertFalse(mManager.isWarmedUp(PACKAGE_NAME));
+        assertTrue(mManager.warmup(service, PACKAGE_NAME, 0));
+        assertTrue(mManager.warmup(service, PACKAGE_NAME, 0));
+        assertEquals(1, service.getWarmupCount());
+        assertTrue(mManager.isWarmedUp(PACKAGE_NAME));
+
+        // The process is still alive, however long ago it was warmed up.
+        mTimeMs += WarmupManager.RECENT_WARMUP_MS;
+        assertTrue(mManager.isWarmedUp(PACKAGE_NAME));
+    }
+
+    @Test
+    public void testConcurrentWarmupsShareOneCall() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder() {
+            @Override
+            public boolean warmup(long flags) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.warmup(flags);
+            }
+        };
+        final boolean[] results = new boolean[2];
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = mManager.warmup(service, PACKAGE_NAME, 0);
+            }
+        });
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[1] = mManager.warmup(service, PACKAGE_NAME, 0);
+            }
+        });
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        second.start();
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        assertEquals(1, service.getWarmupCount());
+    }
+
+    @Test
+    public void testRestartedProviderIsWarmedUpAgain() {
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        mManager.warmup(service, PACKAGE_NAME, 0);
+
+        service.kill();
+        assertFalse(mManager.isWarmedUp(PACKAGE_NAME));
+        TestCustomTabsServiceBinder restartedService = new TestCustomTabsServiceBinder();
+        assertTrue(mManager.warmup(restartedService, PACKAGE_NAME, 0));
+        assertEquals(1, restartedService.getWarmupCount());
+    }
+
+    @Test
+    public void testRecentWarmupIsNotRepeated() {
+        final WeakReference<TestCustomTabsServiceBinder> reference = warmupNewService();
+        // Let the binder of the first warmup be collected, as after an unbind.
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                Runtime.getRuntime().gc();
+                return reference.get() == null;
+            }
+        });
+        assertTrue(mManager.isWarmedUp(PACKAGE_NAME));
+
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        assertTrue(mManager.warmup(service, PACKAGE_NAME, 0));
+        assertEquals(0, service.getWarmupCount());
+
+        // The new binder is known alive, so the provider stays warm.
+        mTimeMs += WarmupManager.RECENT_WARMUP_MS;
+        assertTrue(mManager.isWarmedUp(PACKAGE_NAME));
+    }
+
+    @Test
+    public void testOldWarmupIsRepeated() {
+        final WeakReference<TestCustomTabsServiceBinder> reference = warmupNewService();
+        PollingCheck.waitFor(new PollingCheck.PollingCheckCondition() {
+            @Override
+            public boolean canProceed() {
+                Runtime.getRuntime().gc();
+                return reference.get() == null;
+            }
+        });
+
+        mTimeMs += WarmupManager.RECENT_WARMUP_MS;
+        assertFalse(mManager.isWarmedUp(PACKAGE_NAME));
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        assertTrue(mManager.warmup(service, PACKAGE_NAME, 0));
+        assertEquals(1, service.getWarmupCount());
+    }
+
+    private WeakReference<TestCustomTabsServiceBinder> warmupNewService() {
+        TestCustomTabsServiceBinder service = new TestCustomTabsServiceBinder();
+        assertTrue(mManager.warmup(service, PACKAGE_NAME, 0));
+        return new WeakReference<>(service);
+    }
+}